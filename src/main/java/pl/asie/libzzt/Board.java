@@ -278,6 +278,20 @@ public class Board {
 		}
 	}
 
+	// a deep copy, made by writing the board out and reading it back in
+	public Board copy() {
+		try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream(); ZOutputStream stream = new ZOutputStream(byteStream, engineDefinition)) {
+			writeZ(stream);
+			Board board = new Board(engineDefinition);
+			try (ZInputStream inStream = new ZInputStream(new ByteArrayInputStream(byteStream.toByteArray()), engineDefinition)) {
+				board.readZ(inStream);
+			}
+			return board;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	@Override
 	public String toString() {
 		return "Board{" + this.getName() + "}";
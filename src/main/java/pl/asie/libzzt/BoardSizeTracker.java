@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.libzzt;
+
+import lombok.Getter;
+import pl.asie.zima.util.LengthMeasuringOutputStream;
+
+import java.io.IOException;
+
+// Tracks the serialized size of a board as its tiles and stats are changed through it, so that callers can test
+// whether a change still fits without re-serializing the whole board. Only the RLE runs next to a changed tile
+// are re-measured.
+public class BoardSizeTracker {
+	private final Board board;
+	@Getter
+	private int size;
+
+	public BoardSizeTracker(Board board) {
+		this.board = board;
+		try (LengthMeasuringOutputStream stream = new LengthMeasuringOutputStream(); ZOutputStream zStream = new ZOutputStream(stream, board.getEngineDefinition())) {
+			board.writeZ(zStream);
+			this.size = stream.getDataLength();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void setElement(int x, int y, Element element) {
+		setTile(x, y, element, board.getColor(x, y));
+	}
+
+	public void setColor(int x, int y, int color) {
+		setTile(x, y, board.getElement(x, y), color);
+	}
+
+	public void setTile(int x, int y, Element element, int color) {
+		size += getTileSizeDelta(x, y, element, color);
+		board.setElement(x, y, element);
+		board.setColor(x, y, color);
+	}
+
+	// change in serialized size if the tile at (x, y) was set to the given element and color; does not modify
+	// the board, so it can be called from multiple threads as long as the board is not being changed
+	public int getTileSizeDelta(int x, int y, Element element, int color) {
+		if (x < 1 || y < 1 || x > board.getWidth() || y > board.getHeight()) {
+			// board edges are not serialized
+			return 0;
+		}
+
+		// The runs touching the tile and its two neighbours span [start, end] both before and after the change,
+		// as the outer ends of that span are only determined by tiles outside of it.
+		int pos = (y - 1) * board.getWidth() + (x - 1);
+		int last = board.getWidth() * board.getHeight() - 1;
+		int start = pos;
+		if (start > 0) {
+			int key = getKey(--start);
+			while (start > 0 && getKey(start - 1) == key) start--;
+		}
+		int end = pos;
+		if (end < last) {
+			int key = getKey(++end);
+			while (end < last && getKey(end + 1) == key) end++;
+		}
+
+		int newKey = (board.getEngineDefinition().getElements().byId(element.getId()).getId() << 8) | (color & 0xFF);
+		return getRunBytes(start, end, pos, newKey) - getRunBytes(start, end, -1, 0);
+	}
+
+	public int addStat(Stat stat) {
+		size += stat.lengthZ(board.getEngineDefinition());
+		return board.addStat(stat);
+	}
+
+	private int getKey(int pos) {
+		int x = (pos % board.getWidth()) + 1;
+		int y = (pos / board.getWidth()) + 1;
+		// Board.writeZ() compares elements as looked up by ID, so invalid IDs collapse into the empty element
+		return (board.getElement(x, y).getId() << 8) | board.getColor(x, y);
+	}
+
+	// bytes taken by the RLE runs in [start, end], assuming runs do not continue past either end,
+	// with the tile at overridePos (if any) treated as having overrideKey
+	private int getRunBytes(int start, int end, int overridePos, int overrideKey) {
+		int bytes = 0;
+		int runLength = 1;
+		int runKey = start == overridePos ? overrideKey : getKey(start);
+		for (int pos = start + 1; pos <= end; pos++) {
+			int key = pos == overridePos ? overrideKey : getKey(pos);
+			if (key == runKey && runLength < 255) {
+				runLength++;
+			} else {
+				bytes += 3;
+				runKey = key;
+				runLength = 1;
+			}
+		}
+		return bytes + 3;
+	}
+}
@@ -18,34 +18,66 @@
  */
 package pl.asie.libzzt;
 
-import lombok.RequiredArgsConstructor;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 // TODO: Properly support Super ZZT quirks.
-@RequiredArgsConstructor
 public class ElementDrawFunctionConnected implements ElementDrawFunction {
 	public static final ElementDrawFunctionConnected LINE = new ElementDrawFunctionConnected(
-			new int[] { 249, 208, 210, 186, 181, 188, 187, 185, 198, 200, 201, 204, 205, 202, 203, 206 }
+			new int[] { 249, 208, 210, 186, 181, 188, 187, 185, 198, 200, 201, 204, 205, 202, 203, 206 },
+			"LINE", "BOARD_EDGE"
 	);
 
 	private final int[] chars;
+	private final String[] connectsTo;
+	// for each element library, whether each element id is one this connects to
+	private final Map<ElementLibrary, boolean[]> connectingIds = Collections.synchronizedMap(new WeakHashMap<>());
 
-	private boolean matches(Board board, int x, int y) {
-		Element LINE = board.getEngineDefinition().getElements().byInternalName("LINE");
-		Element BOARD_EDGE = board.getEngineDefinition().getElements().byInternalName("BOARD_EDGE");
-		Element element = board.getElement(x, y);
-		if (element == LINE || element == BOARD_EDGE) {
-			return true;
-		} else {
-			return false;
+	public ElementDrawFunctionConnected(int[] chars, String... connectsTo) {
+		this.chars = chars;
+		this.connectsTo = connectsTo;
+	}
+
+	public boolean[] getConnectingIds(ElementLibrary library) {
+		return connectingIds.computeIfAbsent(library, (l) -> {
+			boolean[] ids = new boolean[256];
+			for (String name : connectsTo) {
+				Element element = l.byInternalNameOrNull(name);
+				if (element != null && element.getId() >= 0 && element.getId() < ids.length) {
+					ids[element.getId()] = true;
+				}
+			}
+			return ids;
+		});
+	}
+
+	// connections of each of the board's cells (excluding the edge), as the index into chars; [y * (width + 2) + x]
+	public int[] getConnections(Board board) {
+		boolean[] ids = getConnectingIds(board.getEngineDefinition().getElements());
+		int outerWidth = board.getWidth() + 2;
+		int[] connections = new int[outerWidth * (board.getHeight() + 2)];
+		for (int y = 1; y <= board.getHeight(); y++) {
+			for (int x = 1; x <= board.getWidth(); x++) {
+				connections[y * outerWidth + x] = getConnections(board, ids, x, y);
+			}
 		}
+		return connections;
 	}
+
+	public int getCharacter(int connections) {
+		return chars[connections];
+	}
+
+	private static int getConnections(Board board, boolean[] ids, int x, int y) {
+		return (ids[board.getElementId(x, y - 1)] ? 1 : 0)
+				| (ids[board.getElementId(x, y + 1)] ? 2 : 0)
+				| (ids[board.getElementId(x - 1, y)] ? 4 : 0)
+				| (ids[board.getElementId(x + 1, y)] ? 8 : 0);
+	}
+
 	@Override
 	public Result draw(Board board, int x, int y) {
-		return Result.character(chars[
-				(matches(board, x, y - 1) ? 1 : 0)
-				| (matches(board, x, y + 1) ? 2 : 0)
-				| (matches(board, x - 1, y) ? 4 : 0)
-				| (matches(board, x + 1, y) ? 8 : 0)
-		]);
+		return Result.character(chars[getConnections(board, getConnectingIds(board.getEngineDefinition().getElements()), x, y)]);
 	}
 }
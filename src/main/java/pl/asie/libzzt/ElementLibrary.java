@@ -27,6 +27,8 @@ public class ElementLibrary {
     @Getter
     private final List<Element> elements = new ArrayList<>();
     private final Map<Integer, Element> elementsById = new HashMap<>();
+    // elementsById as an array, for the ids a board can hold; unknown ids map to empty
+    private final Element[] elementsByIdArray = new Element[256];
     private final Map<Element, String> elementInternalNames = new HashMap<>();
     @Getter
     private final Map<String, Element> elementsByInternalNames = new HashMap<>();
@@ -41,9 +43,15 @@ public class ElementLibrary {
         if (empty == null) {
             throw new RuntimeException();
         }
+        for (int i = 0; i < elementsByIdArray.length; i++) {
+            elementsByIdArray[i] = elementsById.getOrDefault(i, empty);
+        }
     }
 
     public Element byId(int id) {
+        if (id >= 0 && id < elementsByIdArray.length) {
+            return elementsByIdArray[id];
+        }
         return elementsById.getOrDefault(id, empty);
     }
 
@@ -18,66 +18,82 @@
  */
 package pl.asie.libzzt;
 
-
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
 
 public class TextVisualRenderer {
+	// below this many cells, splitting rows across threads costs more than it saves
+	private static final int PARALLEL_MIN_CELLS = 1024;
+
 	@FunctionalInterface
 	public interface ByteGetter {
 		int get(int x, int y);
 	}
 
+	// (character << 8) | color
+	@FunctionalInterface
+	private interface CellGetter {
+		int get(int x, int y);
+	}
+
 	private final TextVisualData visual;
 	private final boolean doubleWide;
+	// for each color, the pixels of each possible glyph row byte, (charWidth * charXInc) apiece; built on first use
+	private final AtomicReferenceArray<int[]> rowPatterns = new AtomicReferenceArray<>(256);
 
 	public TextVisualRenderer(TextVisualData visual, boolean doubleWide) {
 		this.visual = visual;
 		this.doubleWide = doubleWide;
 	}
 
-	private ByteGetter applyPreviewToColor(ByteGetter getter, boolean preview) {
-		if (preview) {
-			return (x, y) -> {
-				int c = getter.get(x, y);
-				return c == 0x00 ? 0x80 : c;
-			};
-		} else {
-			return getter;
-		}
-	}
-
 	public BufferedImage render(Board board, boolean preview) {
 		return render(board, preview, 1, 1, board.getWidth(), board.getHeight());
 	}
 
 	public BufferedImage render(Board board, boolean preview, int xOfs, int yOfs, int width, int height) {
-		return render(width, height, (x, y) -> {
-			Element element = board.getElement(x + xOfs, y + yOfs);
-			if (element.getDrawFunction() != null) {
-				ElementDrawFunction.Result result = element.getDrawFunction().draw(board, x + xOfs, y + yOfs);
-				if (result != null && result.getCharacter() >= 0) {
-					return result.getCharacter();
-				}
+		// connected draw functions (lines) look at their neighbours; work those out for the whole board at once
+		Map<ElementDrawFunctionConnected, int[]> connections = new IdentityHashMap<>();
+		for (Element element : board.getEngineDefinition().getElements().getElements()) {
+			if (element.getDrawFunction() instanceof ElementDrawFunctionConnected) {
+				connections.computeIfAbsent((ElementDrawFunctionConnected) element.getDrawFunction(), (f) -> f.getConnections(board));
 			}
+		}
+		int outerWidth = board.getWidth() + 2;
+
+		return render(width, height, (x, y) -> {
+			int bx = x + xOfs;
+			int by = y + yOfs;
+			Element element = board.getElement(bx, by);
+			int chr, col;
 			if (element.isText()) {
-				return board.getColor(x + xOfs, y + yOfs);
+				chr = board.getColor(bx, by);
+				col = element.getColor();
 			} else {
-				return element.getCharacter();
+				chr = element.getCharacter();
+				col = board.getColor(bx, by);
 			}
-		}, applyPreviewToColor((x, y) -> {
-			Element element = board.getElement(x + xOfs, y + yOfs);
-			if (element.getDrawFunction() != null) {
-				ElementDrawFunction.Result result = element.getDrawFunction().draw(board, x + xOfs, y + yOfs);
+
+			ElementDrawFunction drawFunction = element.getDrawFunction();
+			if (drawFunction instanceof ElementDrawFunctionConnected && bx >= 1 && by >= 1 && bx <= board.getWidth() && by <= board.getHeight()) {
+				chr = ((ElementDrawFunctionConnected) drawFunction).getCharacter(connections.get(drawFunction)[by * outerWidth + bx]);
+			} else if (drawFunction != null) {
+				ElementDrawFunction.Result result = drawFunction.draw(board, bx, by);
+				if (result != null && result.getCharacter() >= 0) {
+					chr = result.getCharacter();
+				}
 				if (result != null && result.getColor() >= 0) {
-					return result.getColor();
+					col = result.getColor();
 				}
 			}
-			if (element.isText()) {
-				return element.getColor();
-			} else {
-				return board.getColor(x + xOfs, y + yOfs);
+			if (preview && col == 0x00) {
+				col = 0x80;
 			}
-		}, preview));
+			return ((chr & 0xFF) << 8) | (col & 0xFF);
+		});
 	}
 
 	/* public BufferedImage render(BoardAnimation animation, int frame) {
@@ -89,33 +105,57 @@ public class TextVisualRenderer {
 	} */
 
 	public BufferedImage render(int width, int height, ByteGetter charGetter, ByteGetter colorGetter) {
-		int charXInc = (isDoubleWide() ? 2 : 1);
-		int charWidth = visual.getCharWidth() * charXInc;
+		return render(width, height, (x, y) -> ((charGetter.get(x, y) & 0xFF) << 8) | (colorGetter.get(x, y) & 0xFF));
+	}
+
+	private BufferedImage render(int width, int height, CellGetter cellGetter) {
+		int charWidth = visual.getCharWidth() * (isDoubleWide() ? 2 : 1);
 		int charHeight = visual.getCharHeight();
-		BufferedImage image = new BufferedImage(width * charWidth, height * charHeight, BufferedImage.TYPE_INT_RGB);
-		for (int y = 0; y < height; y++) {
+		int imageWidth = width * charWidth;
+		BufferedImage image = new BufferedImage(imageWidth, height * charHeight, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		byte[] charData = visual.getCharData();
+
+		IntStream rows = IntStream.range(0, height);
+		if (width * height >= PARALLEL_MIN_CELLS) {
+			rows = rows.parallel();
+		}
+		rows.forEach(y -> {
 			for (int x = 0; x < width; x++) {
-				int chr = charGetter.get(x, y);
-				int col = colorGetter.get(x, y);
-				int bgCol = visual.getPalette()[(col >> 4) & 0x0F];
-				int fgCol = visual.getPalette()[col & 0x0F];
-				byte[] charDataArray = visual.getCharData();
-				int charDataOffset = chr * visual.getCharHeight();
-
-				for (int cy = 0; cy < visual.getCharHeight(); cy++) {
-					int charData = (int) charDataArray[charDataOffset + cy] & 0xFF;
-					int i = 7;
-					for (int cx = 0; cx < charWidth; cx += charXInc, i--) {
-						int ccol = ((charData & (1 << i)) != 0) ? fgCol : bgCol;
-						image.setRGB(x * charWidth + cx, y * charHeight + cy, ccol);
-						if (charXInc > 1) {
-							image.setRGB(x * charWidth + cx + 1, y * charHeight + cy, ccol);
-						}
+				int cell = cellGetter.get(x, y);
+				int[] patterns = getRowPatterns(cell & 0xFF);
+				int charDataOffset = (cell >> 8) * charHeight;
+				int offset = y * charHeight * imageWidth + x * charWidth;
+				for (int cy = 0; cy < charHeight; cy++, offset += imageWidth) {
+					System.arraycopy(patterns, ((int) charData[charDataOffset + cy] & 0xFF) * charWidth, pixels, offset, charWidth);
+				}
+			}
+		});
+		return image;
+	}
+
+	private int[] getRowPatterns(int col) {
+		int[] patterns = rowPatterns.get(col);
+		if (patterns == null) {
+			int charXInc = (isDoubleWide() ? 2 : 1);
+			int charWidth = visual.getCharWidth() * charXInc;
+			int bgCol = visual.getPalette()[(col >> 4) & 0x0F];
+			int fgCol = visual.getPalette()[col & 0x0F];
+			patterns = new int[256 * charWidth];
+			for (int charData = 0; charData < 256; charData++) {
+				int i = 7;
+				for (int cx = 0; cx < charWidth; cx += charXInc, i--) {
+					int ccol = ((charData & (1 << i)) != 0) ? fgCol : bgCol;
+					patterns[charData * charWidth + cx] = ccol;
+					if (charXInc > 1) {
+						patterns[charData * charWidth + cx + 1] = ccol;
 					}
 				}
 			}
+			// racing threads build identical patterns; either may win
+			rowPatterns.compareAndSet(col, null, patterns);
 		}
-		return image;
+		return patterns;
 	}
 
 	private boolean isDoubleWide() {
@@ -20,6 +20,7 @@ package pl.asie.zima;
 
 import pl.asie.zima.binconv.cli.BinconvCliPlugin;
 import pl.asie.zima.image.ImageConverterMain;
+import pl.asie.zima.image.cli.ImageCliPlugin;
 import pl.asie.zima.util.MiscUtils;
 import pl.asie.zima.worldcheck.cli.LinterCliPlugin;
 
@@ -34,6 +35,7 @@ public class Main {
             // CLI
             List<CliPlugin> plugins = List.of(
                     new BinconvCliPlugin(),
+                    new ImageCliPlugin(),
                     new LinterCliPlugin()
             );
             for (CliPlugin plugin : plugins) {
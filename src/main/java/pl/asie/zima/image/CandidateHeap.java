@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import java.util.Arrays;
+
+// Keeps the indices of the lowest-scoring candidates offered to it, up to a fixed capacity.
+final class CandidateHeap {
+	private final float[] scores;
+	private final int[] indices;
+	private int size;
+
+	CandidateHeap(int capacity) {
+		this.scores = new float[capacity];
+		this.indices = new int[capacity];
+	}
+
+	int size() {
+		return size;
+	}
+
+	// a candidate must score below this to be kept
+	float getBound() {
+		return size < scores.length ? Float.MAX_VALUE : scores[0];
+	}
+
+	void offer(int index, float score) {
+		if (size < scores.length) {
+			// sift up
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >> 1;
+				if (scores[parent] >= score) {
+					break;
+				}
+				scores[i] = scores[parent];
+				indices[i] = indices[parent];
+				i = parent;
+			}
+			scores[i] = score;
+			indices[i] = index;
+		} else if (score < scores[0]) {
+			// replace the worst candidate, then sift down
+			int i = 0;
+			while (true) {
+				int child = (i << 1) + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && scores[child + 1] > scores[child]) {
+					child++;
+				}
+				if (scores[child] <= score) {
+					break;
+				}
+				scores[i] = scores[child];
+				indices[i] = indices[child];
+				i = child;
+			}
+			scores[i] = score;
+			indices[i] = index;
+		}
+	}
+
+	// copies the kept indices to the given array, returning the new offset
+	int copyIndices(int[] target, int offset) {
+		System.arraycopy(indices, 0, target, offset, size);
+		return offset + size;
+	}
+
+	static int[] sortedIndices(CandidateHeap... heaps) {
+		int size = 0;
+		for (CandidateHeap heap : heaps) {
+			size += heap.size();
+		}
+		int[] result = new int[size];
+		int offset = 0;
+		for (CandidateHeap heap : heaps) {
+			offset = heap.copyIndices(result, offset);
+		}
+		Arrays.sort(result);
+		return result;
+	}
+}
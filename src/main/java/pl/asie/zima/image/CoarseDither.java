@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import pl.asie.libzzt.TextVisualData;
+import pl.asie.zima.util.ColorUtils;
+import pl.asie.zima.util.DitherMatrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+// Tile-granular error diffusion. Each tile only writes its own outgoing error and its own pixels, and pulls its
+// incoming error from tiles in earlier levels, so all tiles within a level can be processed in parallel without locks.
+final class CoarseDither {
+	private final TextVisualData visual;
+	private final DitherMatrix matrix;
+	private final float strength;
+	private final int width;
+	private final int height;
+	// tile offsets receiving error from a tile, and their weights (strength included)
+	private final int[] offsetX;
+	private final int[] offsetY;
+	private final float[] weights;
+	// tiles with the same (x + levelStep * y) never depend on each other
+	private final int levelStep;
+	// rows of error above the first, carried over from the strip before; see next()
+	private final int historyRows;
+	// linear-light error leaving each tile, as R, G, B; history rows first
+	private final float[] tileErrors;
+
+	CoarseDither(TextVisualData visual, DitherMatrix matrix, float strength, int width, int height) {
+		this.visual = visual;
+		this.matrix = matrix;
+		this.strength = strength;
+		this.width = width;
+		this.height = height;
+
+		float[] ditherMatrix = matrix.getMatrix();
+		int size = matrix.getDimSize();
+		int offset = matrix.getDimOffset();
+		int count = 0;
+		for (float f : ditherMatrix) {
+			if (f > 0.0f) count++;
+		}
+
+		this.offsetX = new int[count];
+		this.offsetY = new int[count];
+		this.weights = new float[count];
+		int step = 1;
+		for (int dmp = 0, i = 0; dmp < ditherMatrix.length; dmp++) {
+			if (ditherMatrix[dmp] > 0.0f) {
+				int dmx = (dmp % size) - offset;
+				int dmy = (dmp / size) - offset;
+				if (dmy < 0 || (dmy == 0 && dmx <= 0)) {
+					throw new RuntimeException("Unsatisfiable constraints for dither matrix!");
+				}
+				// a target at (x + dmx, y + dmy) must land on a later level: dmx + step * dmy >= 1
+				if (dmy > 0) {
+					step = Math.max(step, Math.floorDiv(1 - dmx + dmy - 1, dmy));
+				}
+				this.offsetX[i] = dmx;
+				this.offsetY[i] = dmy;
+				this.weights[i] = ditherMatrix[dmp] * strength;
+				i++;
+			}
+		}
+		this.levelStep = step;
+		this.historyRows = Arrays.stream(offsetY).max().orElse(0);
+		this.tileErrors = new float[width * (historyRows + height) * 3];
+	}
+
+	private CoarseDither(CoarseDither previous, int height) {
+		this.visual = previous.visual;
+		this.matrix = previous.matrix;
+		this.strength = previous.strength;
+		this.width = previous.width;
+		this.height = height;
+		this.offsetX = previous.offsetX;
+		this.offsetY = previous.offsetY;
+		this.weights = previous.weights;
+		this.levelStep = previous.levelStep;
+		this.historyRows = previous.historyRows;
+		this.tileErrors = new float[width * (historyRows + height) * 3];
+	}
+
+	// the dither for the next strip of tile rows below this one, carrying over the error leaving this strip
+	CoarseDither next(int nextHeight) {
+		CoarseDither next = new CoarseDither(this, nextHeight);
+		// the last historyRows rows, which include this strip's own history if it is shorter than that
+		int rowLength = width * 3;
+		System.arraycopy(tileErrors, height * rowLength, next.tileErrors, 0, historyRows * rowLength);
+		return next;
+	}
+
+	DitherMatrix getMatrix() {
+		return matrix;
+	}
+
+	float getStrength() {
+		return strength;
+	}
+
+	List<IntStream> getLevels() {
+		int levelCount = (width - 1) + levelStep * (height - 1) + 1;
+		List<IntStream> levels = new ArrayList<>(levelCount);
+		for (int level = 0; level < levelCount; level++) {
+			final int l = level;
+			int minY = Math.max(0, Math.floorDiv(l - (width - 1) + levelStep - 1, levelStep));
+			int maxY = Math.min(height - 1, l / levelStep);
+			levels.add(IntStream.rangeClosed(minY, maxY).map(iy -> iy * width + (l - levelStep * iy)));
+		}
+		return levels;
+	}
+
+	// adds the error diffused into this tile to its pixels
+	void applyIncoming(LinearImage image, int ix, int iy) {
+		float errorR = 0;
+		float errorG = 0;
+		float errorB = 0;
+		for (int i = 0; i < weights.length; i++) {
+			int sx = ix - offsetX[i];
+			int sy = iy - offsetY[i];
+			if (sx >= 0 && sy >= -historyRows && sx < width && sy < height) {
+				int src = ((historyRows + sy) * width + sx) * 3;
+				errorR += tileErrors[src] * weights[i];
+				errorG += tileErrors[src + 1] * weights[i];
+				errorB += tileErrors[src + 2] * weights[i];
+			}
+		}
+		if (errorR == 0 && errorG == 0 && errorB == 0) {
+			return;
+		}
+
+		int cw = visual.getCharWidth();
+		int ch = visual.getCharHeight();
+		int px = ix * cw;
+		int py = iy * ch;
+		for (int y = py; y < py + ch; y++) {
+			for (int x = px; x < px + cw; x++) {
+				image.setRGB(x, y, (ColorUtils.RtosR(image.getLinearR(x, y) + errorR) << 16)
+						| (ColorUtils.RtosR(image.getLinearG(x, y) + errorG) << 8)
+						| ColorUtils.RtosR(image.getLinearB(x, y) + errorB));
+			}
+		}
+	}
+
+	// stores the average difference between this tile's pixels and the chosen result
+	void storeOutgoing(LinearImage image, ElementResult result, int ix, int iy) {
+		int cw = visual.getCharWidth();
+		int ch = visual.getCharHeight();
+		int px = ix * cw;
+		int py = iy * ch;
+		int bg = visual.getPalette()[result.getColor() >> 4];
+		int fg = visual.getPalette()[result.getColor() & 0xF];
+
+		float errorR = 0;
+		float errorG = 0;
+		float errorB = 0;
+		for (int ey = 0; ey < ch; ey++) {
+			byte chr = visual.getCharData()[result.getCharacter() * ch + ey];
+			for (int ex = 0; ex < cw; ex++) {
+				int resultPx = (((chr >> (7 - ex)) & 0x1) != 0) ? fg : bg;
+				errorR += image.getLinearR(px + ex, py + ey) - ColorUtils.sRtoR((resultPx >> 16) & 0xFF);
+				errorG += image.getLinearG(px + ex, py + ey) - ColorUtils.sRtoR((resultPx >> 8) & 0xFF);
+				errorB += image.getLinearB(px + ex, py + ey) - ColorUtils.sRtoR(resultPx & 0xFF);
+			}
+		}
+
+		int dst = ((historyRows + iy) * width + ix) * 3;
+		tileErrors[dst] = errorR / (cw * ch);
+		tileErrors[dst + 1] = errorG / (cw * ch);
+		tileErrors[dst + 2] = errorB / (cw * ch);
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import pl.asie.libzzt.TextVisualData;
+import pl.asie.zima.util.ColorUtils;
+
+// Per-pixel error against the character's exact foreground/background mask.
+// As the error of a given character splits into a foreground and a background term, the best color for it
+// can be found from 16 masked sums (one per palette entry) instead of trying every color.
+public class ColorPairImageMseCalculator implements ImageMseCalculator {
+	private final TextVisualData visual;
+	private final boolean blinkingDisabled;
+	private final float contrastReduction;
+	private final int[] charRowBitsPrecalc;
+	private final float[] colDistPrecalc;
+	private final MseKernels kernels = MseKernels.get();
+
+	public ColorPairImageMseCalculator(TextVisualData visual, boolean blinkingDisabled, float contrastReduction) {
+		this.visual = visual;
+		this.blinkingDisabled = blinkingDisabled;
+		this.contrastReduction = contrastReduction;
+
+		charRowBitsPrecalc = new int[256 * visual.getCharHeight()];
+		for (int i = 0; i < charRowBitsPrecalc.length; i++) {
+			int charLine = (int) visual.getCharData()[i] & 0xFF;
+			int bits = 0;
+			for (int cx = 0; cx < visual.getCharWidth(); cx++) {
+				bits |= ((charLine >> (7 - cx)) & 1) << cx;
+			}
+			charRowBitsPrecalc[i] = bits;
+		}
+
+		colDistPrecalc = new float[256];
+		for (int i = 0; i < 256; i++) {
+			colDistPrecalc[i] = ColorUtils.distance(visual.getPalette()[i >> 4], visual.getPalette()[i & 15]);
+		}
+	}
+
+	@Override
+	public Applier applyMse(LinearImage image, int px, int py) {
+		final int charWidth = visual.getCharWidth();
+		final int charHeight = visual.getCharHeight();
+		final int[] imgColorLut = image.getTileRGB(px, py, charWidth, charHeight);
+
+		// [palette color][pixel]
+		final float[][] distances = image.getPaletteDistances(px, py, charWidth, charHeight, visual.getPalette());
+		final float[] distanceSums = new float[16];
+		for (int cc = 0; cc < 16; cc++) {
+			for (int i = 0; i < imgColorLut.length; i++) {
+				distanceSums[cc] += distances[cc][i];
+			}
+		}
+
+		float maxDistance = 0.0f;
+		for (int i = 0; i < imgColorLut.length; i++) {
+			for (int j = i + 1; j < imgColorLut.length; j++) {
+				maxDistance = Math.max(maxDistance, ColorUtils.distance(imgColorLut[i], imgColorLut[j]));
+			}
+		}
+
+		final float[] mseContrastPrecalc = new float[256];
+		for (int i = 0; i < 256; i++) {
+			float contrastDiff = maxDistance - colDistPrecalc[i];
+			mseContrastPrecalc[i] = contrastReduction * contrastDiff * contrastDiff * imgColorLut.length;
+		}
+
+		final int colorMask = blinkingDisabled ? 0xFF : 0x7F;
+		final float[] noDistances = new float[imgColorLut.length];
+		final float[] fgDistanceSums = new float[16];
+
+		return new Applier() {
+			@Override
+			public float apply(int chr, int proposedColor, float maxMse) {
+				int col = proposedColor & colorMask;
+				float mse = mseContrastPrecalc[col];
+				if (mse > maxMse) {
+					return Float.MAX_VALUE;
+				}
+
+				float[] bgDistances = distances[col >> 4];
+				float[] fgDistances = distances[col & 0x0F];
+				int charRowOffset = chr * charHeight;
+				for (int cy = 0; cy < charHeight; cy++) {
+					mse += kernels.selectRowSum(bgDistances, fgDistances, cy * charWidth, charWidth, charRowBitsPrecalc[charRowOffset + cy]);
+					if (mse > maxMse) {
+						return Float.MAX_VALUE;
+					}
+				}
+				return mse;
+			}
+
+			@Override
+			public int findBestColor(int chr, int[] colors, int start, int end, float maxMse, float[] bestMse) {
+				int charRowOffset = chr * charHeight;
+				for (int cc = 0; cc < 16; cc++) {
+					float sum = 0.0f;
+					for (int cy = 0; cy < charHeight; cy++) {
+						sum += kernels.selectRowSum(noDistances, distances[cc], cy * charWidth, charWidth, charRowBitsPrecalc[charRowOffset + cy]);
+					}
+					fgDistanceSums[cc] = sum;
+				}
+
+				// background pixels are the complement of foreground pixels
+				int bestIdx = -1;
+				for (int i = start; i < end; i++) {
+					int col = colors[i] & colorMask;
+					int bg = col >> 4;
+					int fg = col & 0x0F;
+					float mse = mseContrastPrecalc[col] + (distanceSums[bg] - fgDistanceSums[bg]) + fgDistanceSums[fg];
+					if (mse < maxMse) {
+						maxMse = mse;
+						bestIdx = i;
+					}
+				}
+				bestMse[0] = maxMse;
+				return bestIdx;
+			}
+		};
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import lombok.Getter;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// The thread pool a conversion's parallel work runs on. Parallel streams started from within a pool's task run on
+// that pool, so everything below run() or call() - including the calculators' table construction - stays on it.
+// The pool never grows past its thread count, even while tasks wait on each other.
+public final class ConversionExecutor {
+	private static final ConversionExecutor COMMON = new ConversionExecutor(ForkJoinPool.commonPool());
+
+	private final ForkJoinPool pool;
+	@Getter
+	private final int threads;
+
+	private ConversionExecutor(ForkJoinPool pool) {
+		this.pool = pool;
+		this.threads = pool.getParallelism();
+	}
+
+	public ConversionExecutor(String name, int threads, int priority) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Thread count must be positive: " + threads);
+		}
+		this.threads = threads;
+		this.pool = new ForkJoinPool(threads, (pool) -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName(name + "-" + thread.getPoolIndex());
+			thread.setPriority(priority);
+			thread.setDaemon(true);
+			return thread;
+		}, null, false, threads, threads, 1, (pool) -> true, 60, TimeUnit.SECONDS);
+	}
+
+	// the JVM-wide common pool
+	public static ConversionExecutor common() {
+		return COMMON;
+	}
+
+	public void run(Runnable task) {
+		call(() -> {
+			task.run();
+			return null;
+		});
+	}
+
+	public <T> T call(Supplier<T> task) {
+		if (ForkJoinTask.getPool() == pool) {
+			return task.get();
+		}
+
+		try {
+			return pool.submit(task::get).join();
+		} catch (RuntimeException e) {
+			// join() may rethrow a copy of the exception, wrapping the original
+			if (e.getCause() != null && e.getCause().getClass() == e.getClass()) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	public void shutdown() {
+		if (pool != ForkJoinPool.commonPool()) {
+			pool.shutdownNow();
+		}
+	}
+}
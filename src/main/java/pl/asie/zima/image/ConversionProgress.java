@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import pl.asie.zima.util.Pair;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Shared between the conversion workers and whoever displays the progress. Workers only bump a striped counter,
+// so tiles don't contend with each other; readers sample it at their own pace.
+public class ConversionProgress {
+	private final LongAdder steps = new LongAdder();
+	private volatile int maximum;
+	private volatile boolean cancelled;
+	// receives unfinished results, at most once per interval, from whichever worker claims it; the worker only
+	// takes a snapshot, and building and rendering the result from it is left to whoever calls the supplier
+	private volatile Consumer<Supplier<Pair<ImageConverter.Result, BufferedImage>>> partialResultListener;
+	private volatile long partialResultIntervalNanos;
+	private final AtomicLong nextPartialResult = new AtomicLong();
+
+	public void start(int maximum) {
+		this.steps.reset();
+		this.maximum = maximum;
+		this.nextPartialResult.set(System.nanoTime() + this.partialResultIntervalNanos);
+	}
+
+	public void step() {
+		this.steps.increment();
+	}
+
+	public int getValue() {
+		return (int) Math.min(this.steps.sum(), this.maximum);
+	}
+
+	public int getMaximum() {
+		return this.maximum;
+	}
+
+	public void cancel() {
+		this.cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	public void setPartialResultListener(int intervalMs, Consumer<Supplier<Pair<ImageConverter.Result, BufferedImage>>> listener) {
+		this.partialResultIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+		this.partialResultListener = listener;
+	}
+
+	public boolean hasPartialResultListener() {
+		return this.partialResultListener != null;
+	}
+
+	// called by the converter between tiles; true if the caller should publish a partial result now
+	public boolean claimPartialResult() {
+		if (this.partialResultListener == null) {
+			return false;
+		}
+		long now = System.nanoTime();
+		long next = this.nextPartialResult.get();
+		return now - next >= 0 && this.nextPartialResult.compareAndSet(next, now + this.partialResultIntervalNanos);
+	}
+
+	public void publishPartialResult(Supplier<Pair<ImageConverter.Result, BufferedImage>> result) {
+		Consumer<Supplier<Pair<ImageConverter.Result, BufferedImage>>> listener = this.partialResultListener;
+		if (listener != null && !this.cancelled) {
+			listener.accept(result);
+		}
+	}
+
+	// called by the converter between tiles
+	public void checkCancelled() {
+		if (this.cancelled) {
+			throw new CancellationException("Conversion cancelled");
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import lombok.Getter;
+import pl.asie.libzzt.Element;
+import pl.asie.libzzt.ElementLibrary;
+
+import java.util.Arrays;
+
+// Candidates are packed as: bits 0-7 = character, 8-15 = color, 16-23 = element ID, 24+ = flags.
+// They are stored in groups (one per element rule), in the order the rules were added.
+// Within a group, consecutive candidates which only differ by color form a run.
+public final class ElementCandidateTable {
+	public static final int FLAG_HAS_STAT = 1 << 24;
+	public static final int FLAG_TEXT = 1 << 25;
+
+	private final ElementLibrary library;
+	@Getter
+	private final int[] candidates;
+	@Getter
+	private final int[] colors;
+	private final int[] groupOffsets;
+	private final int[] runEnds;
+
+	private ElementCandidateTable(ElementLibrary library, int[] candidates, int[] groupOffsets) {
+		this.library = library;
+		this.candidates = candidates;
+		this.groupOffsets = groupOffsets;
+		this.colors = new int[candidates.length];
+		this.runEnds = new int[candidates.length];
+
+		for (int i = 0; i < candidates.length; i++) {
+			colors[i] = getColor(candidates[i]);
+		}
+		for (int g = 0; g < getGroupCount(); g++) {
+			int runEnd = getGroupEnd(g);
+			for (int i = runEnd - 1; i >= getGroupStart(g); i--) {
+				if (i + 1 < runEnd && (candidates[i] & ~0xFF00) != (candidates[i + 1] & ~0xFF00)) {
+					runEnd = i + 1;
+				}
+				runEnds[i] = runEnd;
+			}
+		}
+	}
+
+	public static int pack(Element element, boolean hasStat, boolean text, int character, int color) {
+		return (character & 0xFF) | ((color & 0xFF) << 8) | ((element != null ? element.getId() & 0xFF : 0) << 16)
+				| (hasStat ? FLAG_HAS_STAT : 0) | (text ? FLAG_TEXT : 0);
+	}
+
+	public static int getCharacter(int candidate) {
+		return candidate & 0xFF;
+	}
+
+	public static int getColor(int candidate) {
+		return (candidate >> 8) & 0xFF;
+	}
+
+	public static int getElementId(int candidate) {
+		return (candidate >> 16) & 0xFF;
+	}
+
+	public static boolean hasStat(int candidate) {
+		return (candidate & FLAG_HAS_STAT) != 0;
+	}
+
+	public static boolean isText(int candidate) {
+		return (candidate & FLAG_TEXT) != 0;
+	}
+
+	public int size() {
+		return candidates.length;
+	}
+
+	public int get(int index) {
+		return candidates[index];
+	}
+
+	public int getGroupCount() {
+		return groupOffsets.length - 1;
+	}
+
+	public int getGroupStart(int group) {
+		return groupOffsets[group];
+	}
+
+	public int getGroupEnd(int group) {
+		return groupOffsets[group + 1];
+	}
+
+	public int getRunEnd(int index) {
+		return runEnds[index];
+	}
+
+	public ElementResult toResult(int index) {
+		int candidate = candidates[index];
+		return new ElementResult(
+				library != null ? library.byId(getElementId(candidate)) : null,
+				hasStat(candidate), isText(candidate),
+				getCharacter(candidate), getColor(candidate)
+		);
+	}
+
+	public static Builder builder(ElementLibrary library) {
+		return new Builder(library);
+	}
+
+	public static final class Builder {
+		private final ElementLibrary library;
+		private int[] candidates = new int[256];
+		private int[] groupOffsets = new int[] { 0 };
+		private int size;
+
+		private Builder(ElementLibrary library) {
+			this.library = library;
+		}
+
+		public Builder add(Element element, boolean hasStat, boolean text, int character, int color) {
+			if (size == candidates.length) {
+				candidates = Arrays.copyOf(candidates, size * 2);
+			}
+			candidates[size++] = pack(element, hasStat, text, character, color);
+			return this;
+		}
+
+		// empty groups are dropped
+		public Builder endGroup() {
+			if (groupOffsets[groupOffsets.length - 1] != size) {
+				groupOffsets = Arrays.copyOf(groupOffsets, groupOffsets.length + 1);
+				groupOffsets[groupOffsets.length - 1] = size;
+			}
+			return this;
+		}
+
+		public ElementCandidateTable build() {
+			endGroup();
+			return new ElementCandidateTable(library, Arrays.copyOf(candidates, size), groupOffsets);
+		}
+	}
+}
@@ -18,114 +18,161 @@
  */
 package pl.asie.zima.image;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import pl.asie.libzzt.TextVisualData;
 import pl.asie.zima.util.ColorUtils;
 import pl.asie.zima.util.Gaussian2DKernel;
+import pl.asie.zima.util.PrecalcCache;
 
-import java.awt.image.BufferedImage;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public class GmseImageMseCalculator implements ImageMseCalculator {
+	// Mixes of each color's background and foreground, for each quantized foreground amount; flat, as
+	// [color * (accuracy + 1) + level].
 	public static class ColorMixCache {
-		private final TextVisualData visual;
 		private final int accuracy;
-		private final List<int[]> cache;
+		private final int[] cache;
 
 		public ColorMixCache(TextVisualData visual, int accuracy) {
-			this.visual = visual;
+			this(visual, accuracy, ConversionExecutor.common());
+		}
+
+		public ColorMixCache(TextVisualData visual, int accuracy, ConversionExecutor executor) {
 			this.accuracy = accuracy;
-			this.cache = IntStream.range(0, 256).parallel().mapToObj(col -> {
-				int bgColor = visual.getPalette()[col >> 4];
-				int fgColor = visual.getPalette()[col & 0x0F];
+			Hasher key = Hashing.sha256().newHasher().putInt(accuracy);
+			for (int color : visual.getPalette()) {
+				key.putInt(color);
+			}
+			this.cache = PrecalcCache.getInts("gmse-mix", 2, key.hash(), 256 * (accuracy + 1), () -> {
+				int[] data = new int[256 * (accuracy + 1)];
 				float accAsFloat = (float) accuracy;
+				executor.run(() -> IntStream.range(0, 256).parallel().forEach(col -> {
+					int bgColor = visual.getPalette()[col >> 4];
+					int fgColor = visual.getPalette()[col & 0x0F];
+					int offset = getOffset(col);
+
+					for (int mixFactor = 0; mixFactor <= accuracy; mixFactor++) {
+						data[offset + mixFactor] = ColorUtils.mix(bgColor, fgColor, mixFactor / accAsFloat);
+					}
+				}));
+				return data;
+			});
+		}
 
-				return IntStream.rangeClosed(0, accuracy).map(mixFactor -> ColorUtils.mix(bgColor, fgColor, mixFactor / accAsFloat)).toArray();
-			}).collect(Collectors.toList());
+		public int getOffset(int col) {
+			return col * (accuracy + 1);
+		}
+
+		public int getLevel(float mix) {
+			return Math.round(mix * accuracy);
 		}
 
 		public int mix(int col, float mix) {
-			return cache.get(col)[Math.round(mix * accuracy)];
+			return cache[getOffset(col) + getLevel(mix)];
 		}
 	}
 
+	// Blurred glyphs, as the foreground amount of each pixel; flat, as [chr * charWidth * charHeight + pixel].
 	public static class GaussianCharCache {
-		private final TextVisualData visual;
-		private final List<float[]> cache;
-		private final Gaussian2DKernel kernel;
+		private final int charSize;
+		private final float[] cache;
 
 		public GaussianCharCache(TextVisualData visual, int radius, float sigma) {
-			this.visual = visual;
-			this.kernel = new Gaussian2DKernel(sigma, radius);
-			this.cache = IntStream.range(0, 256).parallel().mapToObj(chr -> {
-				float[] data = new float[visual.getCharWidth() * visual.getCharHeight()];
-				int ci = 0;
-
-				for (int cy = 0; cy < visual.getCharHeight(); cy++) {
-					for (int cx = 0; cx < visual.getCharWidth(); cx++) {
-						float cv = 0.0f;
-						for (int ky = -radius; ky <= radius; ky++) {
-							for (int kx = -radius; kx <= radius; kx++) {
-								int v = visual.getPixelAtWrap(chr, cx + kx, cy + ky);
-								float k = kernel.at(kx, ky);
-								cv += k * v;
+			this(visual, radius, sigma, ConversionExecutor.common());
+		}
+
+		public GaussianCharCache(TextVisualData visual, int radius, float sigma, ConversionExecutor executor) {
+			this.charSize = visual.getCharWidth() * visual.getCharHeight();
+			HashCode key = Hashing.sha256().newHasher()
+					.putInt(visual.getCharWidth()).putInt(visual.getCharHeight()).putBytes(visual.getCharData())
+					.putInt(radius).putInt(Float.floatToIntBits(sigma))
+					.hash();
+			this.cache = PrecalcCache.getFloats("gmse-gaussian", 3, key, 256 * charSize, () -> {
+				Gaussian2DKernel kernel = new Gaussian2DKernel(sigma, radius);
+				float[] data = new float[256 * charSize];
+				executor.run(() -> IntStream.range(0, 256).parallel().forEach(chr -> {
+					int ci = getOffset(chr);
+
+					for (int cy = 0; cy < visual.getCharHeight(); cy++) {
+						for (int cx = 0; cx < visual.getCharWidth(); cx++) {
+							float cv = 0.0f;
+							for (int ky = -radius; ky <= radius; ky++) {
+								for (int kx = -radius; kx <= radius; kx++) {
+									int v = visual.getPixelAtWrap(chr, cx + kx, cy + ky);
+									float k = kernel.at(kx, ky);
+									cv += k * v;
+								}
 							}
+							data[ci++] = cv;
 						}
-						data[ci++] = cv;
 					}
+				}));
+
+				for (Map.Entry<Integer, Float> entries : Map.of(
+						176, 0.25f,
+						177, 0.5f,
+						178, 0.75f
+				).entrySet()) {
+					int offset = getOffset(entries.getKey());
+					Arrays.fill(data, offset, offset + charSize, entries.getValue());
 				}
-
 				return data;
-			}).collect(Collectors.toCollection(ArrayList::new));
-
-			for (Map.Entry<Integer, Float> entries : Map.of(
-					176, 0.25f,
-					177, 0.5f,
-					178, 0.75f
-			).entrySet()) {
-				float[] data = this.cache.get(entries.getKey());
-				Arrays.fill(data, entries.getValue());
-			}
+			});
 		}
 
-		public float[] getGaussian(int chr) {
-			return this.cache.get(chr & 0xFF);
+		public int getOffset(int chr) {
+			return (chr & 0xFF) * charSize;
+		}
+
+		public float getGaussian(int chr, int pixel) {
+			return cache[getOffset(chr) + pixel];
 		}
 	}
 
 	private final TextVisualData visual;
 	private final GaussianCharCache gaussCache;
 	private final ColorMixCache mixCache;
+	// mixCache level of each blurred glyph pixel, laid out as gaussCache
+	private final int[] charMixLevels;
+	// ColorUtils.distance() between each (masked) color's background and foreground
+	private final float[] colorContrasts;
 	private final float contrastReduction;
 	private final boolean blinkingDisabled;
+	private final MseKernels kernels = MseKernels.get();
 
 	public GmseImageMseCalculator(TextVisualData visual, boolean blinkingDisabled, float contrastReduction, float accurateApproximate) {
+		this(visual, blinkingDisabled, contrastReduction, accurateApproximate, ConversionExecutor.common());
+	}
+
+	public GmseImageMseCalculator(TextVisualData visual, boolean blinkingDisabled, float contrastReduction, float accurateApproximate,
+	                              ConversionExecutor executor) {
 		this.visual = visual;
 		this.contrastReduction = contrastReduction;
 		this.blinkingDisabled = blinkingDisabled;
 
 		float size = 0.05f + (accurateApproximate * 1.45f);
-		this.gaussCache = new GaussianCharCache(visual, 3, size);
-		this.mixCache = new ColorMixCache(visual, 1024);
+		this.gaussCache = new GaussianCharCache(visual, 3, size, executor);
+		this.mixCache = new ColorMixCache(visual, 1024, executor);
+
+		int charSize = visual.getCharWidth() * visual.getCharHeight();
+		this.charMixLevels = new int[256 * charSize];
+		for (int i = 0; i < charMixLevels.length; i++) {
+			charMixLevels[i] = mixCache.getLevel(gaussCache.getGaussian(i / charSize, i % charSize));
+		}
+
+		this.colorContrasts = new float[256];
+		for (int i = 0; i < 256; i++) {
+			colorContrasts[i] = ColorUtils.distance(visual.getPalette()[(i >> 4) & 0x0F], visual.getPalette()[i & 0x0F]);
+		}
 	}
 	
 	@Override
-	public Applier applyMse(BufferedImage image, int px, int py) {
-		final int[] imgColorLut = new int[visual.getCharWidth() * visual.getCharHeight()];
-		{
-			int ci = 0;
-			for (int cy = 0; cy < visual.getCharHeight(); cy++) {
-				for (int cx = 0; cx < visual.getCharWidth(); cx++, ci++) {
-					int ix = px + cx;
-					int iy = py + cy;
-					imgColorLut[ci] = image.getRGB(ix, iy);
-				}
-			}
-		}
+	public Applier applyMse(LinearImage image, int px, int py) {
+		final int[] imgColorLut = image.getTileRGB(px, py, visual.getCharWidth(), visual.getCharHeight());
 
 		float maxDistanceTmp = 0.0f;
 		for (int i = 0; i < imgColorLut.length; i++) {
@@ -136,27 +183,29 @@ public class GmseImageMseCalculator implements ImageMseCalculator {
 		float maxDistance = maxDistanceTmp;
 
 		int colorMask = blinkingDisabled ? 0xFF : 0x7F;
+		final int charWidth = visual.getCharWidth();
+		final int[] charColorLut = new int[charWidth];
 
-		return (proposed, maxMse) -> {
+		return (chr, proposedColor, maxMse) -> {
 			float mse = 0.0f;
 
-			int color = proposed.getColor() & colorMask;
-			int bgColor = visual.getPalette()[(proposed.getColor() >> 4) & (blinkingDisabled ? 0x0F : 0x07)];
-			int fgColor = visual.getPalette()[proposed.getColor() & 0x0F];
+			int color = proposedColor & colorMask;
 
-			float contrastDiff = maxDistance - ColorUtils.distance(bgColor, fgColor);
+			float contrastDiff = maxDistance - colorContrasts[color];
 			float mseContrastReduction = contrastReduction * contrastDiff * contrastDiff;
 			mse += mseContrastReduction * imgColorLut.length;
 			if (mse > maxMse) {
 				return mse;
 			}
 
-			float[] charBlurred = gaussCache.getGaussian(proposed.getCharacter());
-			for (int ci = 0; ci < imgColorLut.length; ci++) {
-				int imgColor = imgColorLut[ci];
-				//int localCharColor = ColorUtils.mix(bgColor, fgColor, charBlurred[ci]);
-				int localCharColor = this.mixCache.mix(color, charBlurred[ci]);
-				mse += ColorUtils.distance(imgColor, localCharColor);
+			int[] mixes = mixCache.cache;
+			int mixOffset = mixCache.getOffset(color);
+			int levelOffset = gaussCache.getOffset(chr);
+			for (int ci = 0; ci < imgColorLut.length; ci += charWidth) {
+				for (int cx = 0; cx < charWidth; cx++) {
+					charColorLut[cx] = mixes[mixOffset + charMixLevels[levelOffset + ci + cx]];
+				}
+				mse += kernels.distanceRowSum(imgColorLut, ci, charColorLut, 0, charWidth);
 				if (mse > maxMse) {
 					break;
 				}
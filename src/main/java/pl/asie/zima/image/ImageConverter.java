@@ -18,61 +18,84 @@
  */
 package pl.asie.zima.image;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.Getter;
 import pl.asie.libzzt.Board;
+import pl.asie.libzzt.BoardSizeTracker;
 import pl.asie.libzzt.Element;
 import pl.asie.zima.util.ZimaPlatform;
 import pl.asie.libzzt.Stat;
 import pl.asie.libzzt.TextVisualData;
 import pl.asie.libzzt.TextVisualRenderer;
-import pl.asie.libzzt.ZOutputStream;
 import pl.asie.zima.util.ColorUtils;
 import pl.asie.zima.util.Coord2D;
-import pl.asie.zima.util.LengthMeasuringOutputStream;
 import pl.asie.zima.util.DitherMatrix;
-import pl.asie.zima.util.ImageUtils;
 import pl.asie.zima.util.Pair;
 import pl.asie.zima.util.Triplet;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.IntPredicate;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 public class ImageConverter {
+	private static final int TILE_CACHE_SIZE = 16384;
+	// serialized size of an RLE run on a board: count, element and color
+	private static final int RUN_BYTES = 3;
+
 	private final TextVisualData visual;
 	private final ZimaPlatform platform;
 	private final ElementResult emptyResult;
 	private final ImageMseCalculator mseCalculator;
+	private final int pruneCandidates;
+	private final StatAllocationMode statAllocationMode;
+	private final float rateDistortionLambda;
+	private final ConversionExecutor executor;
+	private final Object candidateTableLock = new Object();
+	private CandidateTableKey candidateTableKey;
+	private ElementCandidateTable candidateTable;
+	private final Cache<TileKey, TileResult> tileCache = CacheBuilder.newBuilder().maximumSize(TILE_CACHE_SIZE).build();
 
 	public ImageConverter(TextVisualData visual, ZimaPlatform platform, ImageMseCalculator mseCalculator) {
-		this.visual = visual;
-		this.platform = platform;
-		this.emptyResult = new ElementResult(platform.getLibrary().getEmpty(), false, false, 0, 0x0F);
-		this.mseCalculator = mseCalculator;
+		this(visual, platform, mseCalculator, 0);
 	}
 
-	@FunctionalInterface
-	private interface ZOutputStreamConsumer {
-		void accept(ZOutputStream stream) throws IOException;
+	// pruneCandidates: if above zero, and the MSE calculator provides a coarse approximation, only this many
+	// best candidates per tile (separately for statless and statful ones) are evaluated exactly
+	public ImageConverter(TextVisualData visual, ZimaPlatform platform, ImageMseCalculator mseCalculator, int pruneCandidates) {
+		this(visual, platform, mseCalculator, pruneCandidates, StatAllocationMode.GREEDY, 0.0f);
 	}
 
-	private int count(ZOutputStreamConsumer streamConsumer) {
-		try (LengthMeasuringOutputStream stream = new LengthMeasuringOutputStream(); ZOutputStream zStream = new ZOutputStream(stream, this.platform.getZztEngineDefinition())) {
-			streamConsumer.accept(zStream);
-			return stream.getDataLength();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+	// statAllocationMode: how statful placements are chosen once the board's stat count or size budget runs out
+	// rateDistortionLambda: if above zero, tiles are scored by MSE + lambda * the board bytes their result adds
+	public ImageConverter(TextVisualData visual, ZimaPlatform platform, ImageMseCalculator mseCalculator, int pruneCandidates,
+	                      StatAllocationMode statAllocationMode, float rateDistortionLambda) {
+		this(visual, platform, mseCalculator, pruneCandidates, statAllocationMode, rateDistortionLambda, ConversionExecutor.common());
+	}
+
+	// executor: the pool the parallel phases of each conversion run on
+	public ImageConverter(TextVisualData visual, ZimaPlatform platform, ImageMseCalculator mseCalculator, int pruneCandidates,
+	                      StatAllocationMode statAllocationMode, float rateDistortionLambda, ConversionExecutor executor) {
+		this.visual = visual;
+		this.platform = platform;
+		this.emptyResult = new ElementResult(platform.getLibrary().getEmpty(), false, false, 0, 0x0F);
+		this.mseCalculator = mseCalculator;
+		this.pruneCandidates = pruneCandidates;
+		this.statAllocationMode = statAllocationMode;
+		this.rateDistortionLambda = rateDistortionLambda;
+		this.executor = executor;
 	}
 
 	@AllArgsConstructor
@@ -84,6 +107,21 @@ public class ImageConverter {
 		@Getter
 		private final int height;
 		private final ElementResult[] previewResults;
+		// for incremental reconversion
+		private final CandidateTableKey candidateTableKey;
+		private final TileResult[] tileResults;
+		// number of tiles whose search results were taken from the previous result
+		@Getter
+		private final int reusedTiles;
+		// the error diffusion settings used; null and 0 if undithered
+		@Getter
+		private final DitherMatrix coarseDitherMatrix;
+		@Getter
+		private final float coarseDitherStrength;
+
+		public boolean isDithered() {
+			return ImageConverter.isDithered(coarseDitherStrength, coarseDitherMatrix);
+		}
 
 		public int getCharacter(int ix, int iy) {
 			if (ix >= 0 && iy >= 0 && ix < width && iy < height) {
@@ -102,273 +140,498 @@ public class ImageConverter {
 		}
 	}
 
+	// Pixels of the given rows of a boardless image; see convertBoardlessStrips().
+	@FunctionalInterface
+	public interface StripSource {
+		BufferedImage read(int fromY, int toY) throws IOException;
+	}
+
+	@FunctionalInterface
+	public interface StripConsumer {
+		void accept(int fromRow, Result strip) throws IOException;
+	}
+
 	private Pair<Result, BufferedImage> convertBoardless(BufferedImage inputImage, int width, int height, boolean blinkingDisabled,
 	                                                     IntPredicate charCheck, IntPredicate colorCheck,
 	                                                     float coarseDitherStrength, DitherMatrix coarseDitherMatrixEnum,
 	                                                     TextVisualRenderer previewRenderer,
-	                                                     ProgressCallback progressCallback, boolean fast) {
-		List<ElementResult> rules = new ArrayList<>(256 * 256);
-		final int progressSize = width * height;
-		ElementResult[] previewResults = new ElementResult[width * height];
-		ElementResult emptyResult = null;
+	                                                     ConversionProgress progress, boolean fast,
+	                                                     Result reusableResult, BitSet dirtyTiles) {
+		final CandidateTableKey candidateTableKey = new CandidateTableKey(null, toBitSet(charCheck), toBitSet(colorCheck), false, fast);
+		final CoarseDither coarseDither = isDithered(coarseDitherStrength, coarseDitherMatrixEnum)
+				? new CoarseDither(visual, coarseDitherMatrixEnum, coarseDitherStrength, width, height) : null;
+
+		progress.start(width * height);
+		Result result = convertBoardlessTiles(new LinearImage(inputImage), width, height, candidateTableKey, coarseDither,
+				previewRenderer, blinkingDisabled, progress, reusableResult, dirtyTiles);
+
+		// preview
 		BufferedImage preview = null;
+		if (previewRenderer != null) {
+			preview = renderPreview(previewRenderer, result, blinkingDisabled);
+		}
 
-		int acceptedChars = 0;
-		for (int ich = 0; ich < 256; ich++) {
-			if (fast && (ich != 32 && ich != 176 && ich != 177 && ich != 178 && ich != 219)) continue;
-			if (charCheck != null && !charCheck.test(ich)) continue;
-			for (int ico = 0; ico < 256; ico++) {
-				if (colorCheck != null && !colorCheck.test(ico)) continue;
+		return new Pair<>(result, preview);
+	}
 
-				// if BG == FG, we only need one char
-				if (((ico >> 4) == (ico & 15)) && acceptedChars >= 1) {
-					continue;
-				}
+	// Converts a boardless image stripRows tile rows at a time, handing each strip's result to the consumer in order,
+	// so that only one strip's pixels and results are held at once. Error diffusion carries over between strips.
+	public void convertBoardlessStrips(StripSource source, int width, int height, int stripRows,
+	                                   IntPredicate charCheck, IntPredicate colorCheck,
+	                                   float coarseDitherStrength, DitherMatrix coarseDitherMatrixEnum,
+	                                   ConversionProgress progress, StripConsumer consumer) throws IOException {
+		if (platform.isUsesBoard()) {
+			throw new IllegalStateException("Strip conversion is only supported for boardless platforms");
+		}
 
-				ElementResult result = new ElementResult(null, false, false, ich, ico);
-				if (emptyResult == null) {
-					emptyResult = result;
-				}
-				rules.add(result);
+		final CandidateTableKey candidateTableKey = new CandidateTableKey(null, toBitSet(charCheck), toBitSet(colorCheck), false, false);
+		CoarseDither coarseDither = null;
+
+		progress.start(width * height);
+		for (int fromRow = 0; fromRow < height; fromRow += stripRows) {
+			int rows = Math.min(stripRows, height - fromRow);
+			if (isDithered(coarseDitherStrength, coarseDitherMatrixEnum)) {
+				coarseDither = coarseDither == null ? new CoarseDither(visual, coarseDitherMatrixEnum, coarseDitherStrength, width, rows)
+						: coarseDither.next(rows);
 			}
-			acceptedChars++;
-		}
 
-		if (emptyResult == null) {
-			emptyResult = new ElementResult(null, false, false, 0, 0);
+			LinearImage image = new LinearImage(source.read(fromRow * visual.getCharHeight(), (fromRow + rows) * visual.getCharHeight()));
+			consumer.accept(fromRow, convertBoardlessTiles(image, width, rows, candidateTableKey, coarseDither,
+					null, false, progress, null, null));
 		}
-		final ElementResult emptyResultFinal = emptyResult;
+	}
+
+	private Result convertBoardlessTiles(LinearImage image, int width, int height, CandidateTableKey candidateTableKey, CoarseDither coarseDither,
+	                                     TextVisualRenderer previewRenderer, boolean blinkingDisabled,
+	                                     ConversionProgress progress, Result reusableResult, BitSet dirtyTiles) {
+		ElementResult[] previewResults = new ElementResult[width * height];
+		TileResult[] tileResults = new TileResult[width * height];
+
+		final ElementCandidateTable candidates = getCandidateTable(candidateTableKey);
+		final ElementResult emptyResultFinal = candidates.size() > 0 ? candidates.toResult(0) : new ElementResult(null, false, false, 0, 0);
 
-		float[] ditherMatrix = coarseDitherMatrixEnum != null ? coarseDitherMatrixEnum.getMatrix() : null;
-		int ditherMatrixSize = coarseDitherMatrixEnum != null ? coarseDitherMatrixEnum.getDimSize() : 0;
-		int ditherMatrixOffset = coarseDitherMatrixEnum != null ? coarseDitherMatrixEnum.getDimOffset() : 0;
-		List<IntStream> blockIndexes = getBlockIndexes(width, height, coarseDitherStrength, coarseDitherMatrixEnum);
+		List<IntStream> blockIndexes = coarseDither != null ? coarseDither.getLevels()
+				: progress.hasPartialResultListener() ? getInterleavedLevels(width, height) : List.of(IntStream.range(0, width * height));
 
-		final BufferedImage image = coarseDitherStrength > 0.0f ? ImageUtils.cloneRgb(inputImage) : inputImage;
-		final Object ditherApplicationSync = new Object();
+		final AtomicInteger reusedTiles = new AtomicInteger();
 
 		// find lowest-MSE results for each tile, in parallel
-		blockIndexes.forEach(idxs -> {
+		executor.run(() -> blockIndexes.forEach(idxs -> {
 			idxs.parallel().forEach(pos -> {
-				synchronized (progressCallback) {
-					progressCallback.step(progressSize);
-				}
+				progress.checkCancelled();
+				progress.step();
 
 				int ix = pos % width;
 				int iy = pos / width;
 
-				ElementResult minResult = emptyResultFinal;
-				float minMse = Float.MAX_VALUE;
 				int px = ix * visual.getCharWidth();
 				int py = iy * visual.getCharHeight();
-				ImageMseCalculator.Applier applyMseFunc = mseCalculator.applyMse(image, px, py);
-
-				for (ElementResult result : rules) {
-					float localMse = applyMseFunc.apply(result, minMse);
-					if (localMse < minMse) {
-						minMse = localMse;
-						minResult = result;
-					}
+				if (coarseDither != null) {
+					coarseDither.applyIncoming(image, ix, iy);
+				}
+				TileResult tileResult = getPreviousTileResult(reusableResult, dirtyTiles, candidateTableKey, width, height, pos, null);
+				if (tileResult == null) {
+					tileResult = getTileResult(candidateTableKey, candidates, image, px, py, null);
+				} else {
+					reusedTiles.incrementAndGet();
 				}
+				tileResults[pos] = tileResult;
 
+				ElementResult minResult = tileResult.getStatlessResult() != null ? tileResult.getStatlessResult() : emptyResultFinal;
 				previewResults[pos] = minResult;
+				if (progress.claimPartialResult()) {
+					// the listener renders the snapshot off the pool, so the worker can go back to its tiles
+					ElementResult[] snapshot = previewResults.clone();
+					progress.publishPartialResult(() -> {
+						Result partial = createPartialResult(snapshot, width, height, emptyResultFinal);
+						return new Pair<>(partial, previewRenderer != null ? renderPreview(previewRenderer, partial, blinkingDisabled) : null);
+					});
+				}
 
-				if (coarseDitherStrength > 0.0f) {
-					synchronized (ditherApplicationSync) {
-						applyCoarseDither(coarseDitherStrength, ditherMatrix, ditherMatrixSize, ditherMatrixOffset, image, minResult, px, py);
-					}
+				if (coarseDither != null) {
+					coarseDither.storeOutgoing(image, minResult, ix, iy);
 				}
 			});
-		});
+		}));
 
-		// result
-		Result result = new Result(null, width, height, previewResults);
+		return new Result(null, width, height, previewResults, candidateTableKey, tileResults, reusedTiles.get(),
+				coarseDither != null ? coarseDither.getMatrix() : null, coarseDither != null ? coarseDither.getStrength() : 0.0f);
+	}
 
-		// preview
-		if (previewRenderer != null) {
-			preview = previewRenderer.render(width, height, (ix, iy) -> {
-				if (ix >= 0 && iy >= 0 && ix < width && iy < height) {
-					return result.getCharacter(ix, iy);
-				} else {
-					return 0;
-				}
-			}, (ix, iy) -> {
-				if (ix >= 0 && iy >= 0 && ix < width && iy < height) {
-					int color = result.getColor(ix, iy);
-					return blinkingDisabled ? color : (color & 0x7F);
-				} else {
-					return 0;
-				}
-			});
+	@Data
+	private static class CandidateTableKey {
+		private final ImageConverterRuleset ruleset;
+		private final BitSet allowedChars;
+		private final BitSet allowedColors;
+		private final boolean statsAllowed;
+		private final boolean fast;
+	}
+
+	private static BitSet toBitSet(IntPredicate predicate) {
+		if (predicate == null) {
+			return null;
+		}
+		BitSet set = new BitSet(256);
+		for (int i = 0; i < 256; i++) {
+			if (predicate.test(i)) {
+				set.set(i);
+			}
 		}
+		return set;
+	}
 
-		return new Pair<>(result, preview);
+	private static boolean isAllowed(BitSet set, int i) {
+		return set == null || set.get(i);
+	}
+
+	private ElementCandidateTable getCandidateTable(CandidateTableKey key) {
+		synchronized (this.candidateTableLock) {
+			if (!key.equals(this.candidateTableKey)) {
+				this.candidateTable = key.getRuleset() != null ? createCandidateTable(key) : createBoardlessCandidateTable(key);
+				this.candidateTableKey = key;
+			}
+			return this.candidateTable;
+		}
 	}
 
 	@Data
-	private static class ElementRuleResult {
-		private final ElementRule rule;
-		private final List<ElementResult> result;
+	private static class TileKey {
+		private final CandidateTableKey tableKey;
+		private final int[] pixels;
+		private final ElementResult runResult;
 	}
 
-	public Pair<Result, BufferedImage> convert(BufferedImage inputImage, ImageConverterRuleset ruleset,
-											  int x, int y, int width, int height, int playerX, int playerY, int maxStatCount, boolean blinkingDisabled,
-											  int maxBoardSize, float coarseDitherStrength, DitherMatrix coarseDitherMatrixEnum,
-											  IntPredicate charCheck, IntPredicate colorCheck, int defStatCycle,
-											  TextVisualRenderer previewRenderer,
-											  ProgressCallback progressCallback, boolean fast) {
-		if (!platform.isSupportsBlinking()) {
-			blinkingDisabled = true;
+	@Data
+	private static class TileResult {
+		private final ElementResult statlessResult;
+		private final float statlessMse;
+		private final ElementResult statfulResult;
+		private final float statfulMse;
+		// the left neighbour's result the tile was scored against; null if searched for the lowest MSE alone
+		private final ElementResult runResult;
+	}
+
+	private static boolean isDithered(float coarseDitherStrength, DitherMatrix coarseDitherMatrix) {
+		return coarseDitherStrength > 0.0f && coarseDitherMatrix != null;
+	}
+
+	private static TileResult getPreviousTileResult(Result previousResult, BitSet dirtyTiles, CandidateTableKey tableKey, int width, int height, int pos,
+	                                                ElementResult runResult) {
+		if (previousResult == null || dirtyTiles == null || dirtyTiles.get(pos)
+				|| previousResult.width != width || previousResult.height != height
+				|| !tableKey.equals(previousResult.candidateTableKey)) {
+			return null;
 		}
-		final boolean blinkingDisabledFinal = blinkingDisabled;
+		TileResult result = previousResult.tileResults[pos];
+		return result != null && Objects.equals(result.getRunResult(), runResult) ? result : null;
+	}
 
-		if (!platform.isUsesBoard()) {
-			return convertBoardless(inputImage, width, height, blinkingDisabled, charCheck, colorCheck, coarseDitherStrength, coarseDitherMatrixEnum, previewRenderer, progressCallback, fast);
+	// The best candidates only depend on the tile's pixels, the candidate set and the result whose run the tile
+	// could continue, as the MSE calculator, pruning and rate-distortion settings are fixed for a converter; this
+	// lets reconversions skip unchanged tiles.
+	private TileResult getTileResult(CandidateTableKey tableKey, ElementCandidateTable candidates, LinearImage image, int px, int py,
+	                                 ElementResult runResult) {
+		int[] pixels = image.getTileRGB(px, py, visual.getCharWidth(), visual.getCharHeight());
+		TileKey key = new TileKey(tableKey, pixels, runResult);
+		TileResult result = tileCache.getIfPresent(key);
+		if (result == null) {
+			result = findBestCandidates(candidates, image, px, py, runResult);
+			tileCache.put(key, result);
 		}
+		return result;
+	}
 
-		Board board = new Board(platform.getZztEngineDefinition(), playerX, playerY);
-		BufferedImage preview = null;
+	// Finds the lowest-MSE candidate overall (statful) and among candidates without stats (statless).
+	// If runResult is set, the statless candidates are instead scored by MSE + rateDistortionLambda * the bytes they
+	// add to the board: continuing runResult's run adds none, and every other candidate starts a new 3-byte run.
+	private TileResult findBestCandidates(ElementCandidateTable candidates, LinearImage image, int px, int py, ElementResult runResult) {
+		final int[] candidateData = candidates.getCandidates();
+		final int[] candidateColors = candidates.getColors();
+
+		int statlessIdx = -1;
+		float statlessMse = Float.MAX_VALUE;
+		int statfulIdx = -1;
+		float statfulMse = Float.MAX_VALUE;
+		ImageMseCalculator.Applier applyMseFunc = mseCalculator.applyMse(image, px, py);
+		ImageMseCalculator.Applier coarseMseFunc = pruneCandidates > 0 ? applyMseFunc.coarse() : null;
+		float[] bestColorMse = new float[1];
+
+		if (coarseMseFunc != null) {
+			// coarse pass over all candidates, keeping statless ones separately so that one is always found
+			CandidateHeap statlessHeap = new CandidateHeap(pruneCandidates);
+			CandidateHeap statfulHeap = new CandidateHeap(pruneCandidates);
+			for (int i = 0; i < candidateData.length; i++) {
+				CandidateHeap heap = ElementCandidateTable.hasStat(candidateData[i]) ? statfulHeap : statlessHeap;
+				float coarseMse = coarseMseFunc.apply(ElementCandidateTable.getCharacter(candidateData[i]), candidateColors[i], heap.getBound());
+				if (coarseMse < heap.getBound()) {
+					heap.offer(i, coarseMse);
+				}
+			}
 
-		int pixelWidth = width * visual.getCharWidth();
-		int pixelHeight = height * visual.getCharHeight();
+			// exact pass over the survivors
+			for (int i : CandidateHeap.sortedIndices(statlessHeap, statfulHeap)) {
+				boolean hasStat = ElementCandidateTable.hasStat(candidateData[i]);
+				float localMse = applyMseFunc.apply(ElementCandidateTable.getCharacter(candidateData[i]), candidateColors[i], hasStat ? statfulMse : statlessMse);
+				if (!hasStat && localMse < statlessMse) {
+					statlessIdx = i;
+					statlessMse = localMse;
+				}
+				if (localMse < statfulMse) {
+					statfulIdx = i;
+					statfulMse = localMse;
+				}
+			}
+		} else {
+			for (int g = 0; g < candidates.getGroupCount(); g++) {
+				int groupEnd = candidates.getGroupEnd(g);
+
+				float lowestLocalMse = statlessMse;
+				int lowestLocalIdx = -1;
+
+				for (int i = candidates.getGroupStart(g); i < groupEnd; ) {
+					int runEnd = candidates.getRunEnd(i);
+					int candidateIdx = i;
+					int chr = ElementCandidateTable.getCharacter(candidateData[i]);
+					float localMse;
+					if (runEnd - i > 1) {
+						candidateIdx = applyMseFunc.findBestColor(chr, candidateColors, i, runEnd, lowestLocalMse, bestColorMse);
+						localMse = bestColorMse[0];
+					} else {
+						localMse = applyMseFunc.apply(chr, candidateColors[i], lowestLocalMse);
+					}
+					i = runEnd;
 
-		List<Triplet<Coord2D, ElementResult, Float>> statfulStrategies = new ArrayList<>();
-		List<ElementRuleResult> ruleResultList = new ArrayList<>(ruleset.getRules().size());
-		Set<Element> allowedElements = new HashSet<>();
-		ElementResult[] previewResults = new ElementResult[width * height];
-		float[] previewMse = new float[width * height];
-		final int progressSize = width * height;
+					if (candidateIdx >= 0 && localMse < lowestLocalMse) {
+						lowestLocalMse = localMse;
+						lowestLocalIdx = candidateIdx;
+					}
+				}
+
+				if (lowestLocalIdx >= 0) {
+					if (!ElementCandidateTable.hasStat(candidateData[lowestLocalIdx])) {
+						if (lowestLocalMse < statlessMse) {
+							statlessIdx = lowestLocalIdx;
+							statlessMse = lowestLocalMse;
+						}
+					}
+					if (lowestLocalMse < statfulMse) {
+						statfulIdx = lowestLocalIdx;
+						statfulMse = lowestLocalMse;
+					}
+				}
+			}
+		}
+
+		ElementResult statlessResult = statlessIdx >= 0 ? candidates.toResult(statlessIdx) : null;
+		ElementResult statfulResult = statfulIdx == statlessIdx ? statlessResult : candidates.toResult(statfulIdx);
+
+		// as all candidates but runResult cost the same bytes, the lowest-MSE one is the only other contender
+		if (runResult != null && statlessResult != null && !runResult.equals(statlessResult)) {
+			float maxMse = statlessMse + rateDistortionLambda * RUN_BYTES;
+			float runMse = applyMseFunc.apply(runResult.getCharacter(), runResult.getColor(), maxMse);
+			if (runMse < maxMse) {
+				if (statfulResult == statlessResult) {
+					statfulResult = runResult;
+					statfulMse = runMse;
+				}
+				statlessResult = runResult;
+				statlessMse = runMse;
+			}
+		}
+		return new TileResult(statlessResult, statlessMse, statfulResult, statfulMse, runResult);
+	}
+
+	// tiles outside of the board, and the player's tile, are not converted
+	private boolean isTileForbidden(int bx, int by, int playerX, int playerY) {
+		return bx < 1 || by < 1 || bx > platform.getBoardWidth() || by > platform.getBoardHeight() || (bx == playerX && by == playerY);
+	}
+
+	private ElementCandidateTable createBoardlessCandidateTable(CandidateTableKey key) {
+		ElementCandidateTable.Builder builder = ElementCandidateTable.builder(null);
+
+		int acceptedChars = 0;
+		for (int ich = 0; ich < 256; ich++) {
+			if (key.isFast() && (ich != 32 && ich != 176 && ich != 177 && ich != 178 && ich != 219)) continue;
+			if (!isAllowed(key.getAllowedChars(), ich)) continue;
+			for (int ico = 0; ico < 256; ico++) {
+				if (!isAllowed(key.getAllowedColors(), ico)) continue;
+
+				// if BG == FG, we only need one char
+				if (((ico >> 4) == (ico & 15)) && acceptedChars >= 1) {
+					continue;
+				}
+
+				builder.add(null, false, false, ich, ico);
+			}
+			acceptedChars++;
+		}
+
+		return builder.build();
+	}
+
+	private ElementCandidateTable createCandidateTable(CandidateTableKey key) {
+		ElementCandidateTable.Builder builder = ElementCandidateTable.builder(platform.getLibrary());
+		ImageConverterRuleset ruleset = key.getRuleset();
+		BitSet allowedChars = key.getAllowedChars();
+		BitSet allowedColors = key.getAllowedColors();
 
-		// generate ruleResultMap
 		for (ElementRule rule : ruleset.getRules()) {
-			if (rule.getStrategy().isRequiresStat() && maxStatCount <= 0) {
+			if (rule.getStrategy().isRequiresStat() && !key.isStatsAllowed()) {
 				// no stats - no stat strategies!
 				continue;
 			}
 
-			Stream<ElementResult> proposals = null;
-			allowedElements.add(rule.getElement());
 			switch (rule.getStrategy()) {
 				case EMPTY:
-					proposals = Stream.of(emptyResult);
+					builder.add(emptyResult.getElement(), emptyResult.isHasStat(), emptyResult.isText(), emptyResult.getCharacter(), emptyResult.getColor());
 					break;
 				case ELEMENT:
-					if (charCheck != null && !charCheck.test(rule.getChr())) {
+					if (!isAllowed(allowedChars, rule.getChr())) {
 						continue;
 					}
-					proposals = IntStream.range(0, 256).filter(i -> {
-						if (colorCheck != null && !colorCheck.test(i)) {
-							return false;
+					for (int i = 0; i < 256; i++) {
+						if (isAllowed(allowedColors, i)) {
+							builder.add(rule.getElement(), false, false, rule.getChr(), i);
 						}
-
-						return true;
-					}).mapToObj(i -> new ElementResult(rule.getElement(), false, false, rule.getChr(), i));
+					}
 					break;
 				case TEXT:
-					if (colorCheck != null && !colorCheck.test(rule.getColor())) {
+					if (!isAllowed(allowedColors, rule.getColor())) {
 						continue;
 					}
-					proposals = IntStream.of(ruleset.getAllowedTextCharIndices()).filter(i -> {
-						if (charCheck != null && !charCheck.test(i)) {
-							return false;
+					for (int i : ruleset.getAllowedTextCharIndices()) {
+						if (isAllowed(allowedChars, i)) {
+							builder.add(rule.getElement(), false, true, i, rule.getColor());
 						}
-
-						return true;
-					}).mapToObj(i -> new ElementResult(rule.getElement(), false, true, i, rule.getColor()));
+					}
 					break;
 				case USE_STAT_P1:
-					proposals = IntStream.of(ruleset.getAllowedObjectIndices()).filter(i -> {
-						if (charCheck != null && !charCheck.test(i & 0xFF)) {
-							return false;
-						}
-
-						if (colorCheck != null && !colorCheck.test(i >> 8)) {
-							return false;
+					// ordered by character, so that each character's colors form one run
+					int[] objectIndices = Arrays.stream(ruleset.getAllowedObjectIndices())
+							.map(i -> ((i & 0xFF) << 8) | (i >> 8))
+							.sorted().toArray();
+					for (int i : objectIndices) {
+						if (isAllowed(allowedChars, i >> 8) && isAllowed(allowedColors, i & 0xFF)) {
+							builder.add(rule.getElement(), true, false, i >> 8, i & 0xFF);
 						}
-
-						return true;
-					}).mapToObj(i -> new ElementResult(rule.getElement(), true, false, i & 0xFF, i >> 8));
+					}
 					break;
 			}
 
-			ruleResultList.add(new ElementRuleResult(rule, proposals.collect(Collectors.toList())));
+			builder.endGroup();
+		}
+
+		return builder.build();
+	}
+
+	public Pair<Result, BufferedImage> convert(BufferedImage inputImage, ImageConverterRuleset ruleset,
+											  int x, int y, int width, int height, int playerX, int playerY, int maxStatCount, boolean blinkingDisabled,
+											  int maxBoardSize, float coarseDitherStrength, DitherMatrix coarseDitherMatrixEnum,
+											  IntPredicate charCheck, IntPredicate colorCheck, int defStatCycle,
+											  TextVisualRenderer previewRenderer,
+											  ConversionProgress progress, boolean fast) {
+		return convert(inputImage, ruleset, x, y, width, height, playerX, playerY, maxStatCount, blinkingDisabled, maxBoardSize,
+				coarseDitherStrength, coarseDitherMatrixEnum, charCheck, colorCheck, defStatCycle, previewRenderer, progress, fast,
+				null, null);
+	}
+
+	// previousResult, dirtyTiles: if both are provided, tiles not in dirtyTiles reuse their search results from previousResult,
+	// as long as the candidate set is unchanged. The stat placement and compression passes are always done in full.
+	public Pair<Result, BufferedImage> convert(BufferedImage inputImage, ImageConverterRuleset ruleset,
+											  int x, int y, int width, int height, int playerX, int playerY, int maxStatCount, boolean blinkingDisabled,
+											  int maxBoardSize, float coarseDitherStrength, DitherMatrix coarseDitherMatrixEnum,
+											  IntPredicate charCheck, IntPredicate colorCheck, int defStatCycle,
+											  TextVisualRenderer previewRenderer,
+											  ConversionProgress progress, boolean fast,
+											  Result previousResult, BitSet dirtyTiles) {
+		// error diffusion carries changes across tiles, and the dirty tiles are found on the undithered image,
+		// so search results are only reused between two undithered conversions
+		final Result reusableResult = isDithered(coarseDitherStrength, coarseDitherMatrixEnum)
+				|| (previousResult != null && previousResult.isDithered()) ? null : previousResult;
+		if (!platform.isSupportsBlinking()) {
+			blinkingDisabled = true;
+		}
+		final boolean blinkingDisabledFinal = blinkingDisabled;
+
+		if (!platform.isUsesBoard()) {
+			return convertBoardless(inputImage, width, height, blinkingDisabled, charCheck, colorCheck, coarseDitherStrength, coarseDitherMatrixEnum, previewRenderer, progress, fast, reusableResult, dirtyTiles);
 		}
 
-		float[] ditherMatrix = coarseDitherMatrixEnum != null ? coarseDitherMatrixEnum.getMatrix() : null;
-		int ditherMatrixSize = coarseDitherMatrixEnum != null ? coarseDitherMatrixEnum.getDimSize() : 0;
-		int ditherMatrixOffset = coarseDitherMatrixEnum != null ? coarseDitherMatrixEnum.getDimOffset() : 0;
-		List<IntStream> blockIndexes = getBlockIndexes(width, height, coarseDitherStrength, coarseDitherMatrixEnum);
+		Board board = new Board(platform.getZztEngineDefinition(), playerX, playerY);
+		BufferedImage preview = null;
 
-		final BufferedImage image = coarseDitherStrength > 0.0f ? ImageUtils.cloneRgb(inputImage) : inputImage;
-		final Object ditherApplicationSync = new Object();
+		int pixelWidth = width * visual.getCharWidth();
+		int pixelHeight = height * visual.getCharHeight();
+
+		List<Triplet<Coord2D, ElementResult, Float>> statfulStrategies = new ArrayList<>();
+		Set<Element> allowedElements = new HashSet<>();
+		ElementResult[] previewResults = new ElementResult[width * height];
+		TileResult[] tileResults = new TileResult[width * height];
+		float[] previewMse = new float[width * height];
+		final int progressSize = width * height;
+
+		for (ElementRule rule : ruleset.getRules()) {
+			if (!rule.getStrategy().isRequiresStat() || maxStatCount > 0) {
+				allowedElements.add(rule.getElement());
+			}
+		}
+		final CandidateTableKey candidateTableKey = new CandidateTableKey(ruleset, toBitSet(charCheck), toBitSet(colorCheck), maxStatCount > 0, false);
+		final ElementCandidateTable candidates = getCandidateTable(candidateTableKey);
+
+		final CoarseDither coarseDither = isDithered(coarseDitherStrength, coarseDitherMatrixEnum)
+				? new CoarseDither(visual, coarseDitherMatrixEnum, coarseDitherStrength, width, height) : null;
+		// rate-distortion scoring needs each tile's left neighbour searched first; the dithering wavefront already
+		// does that, otherwise the rows are searched in parallel, a column at a time
+		final boolean rateDistortion = !fast && rateDistortionLambda > 0.0f;
+		List<IntStream> blockIndexes = coarseDither != null ? coarseDither.getLevels()
+				: rateDistortion ? getColumnLevels(width, height)
+				: progress.hasPartialResultListener() ? getInterleavedLevels(width, height) : List.of(IntStream.range(0, width * height));
+
+		final LinearImage image = new LinearImage(inputImage);
+		final AtomicInteger reusedTiles = new AtomicInteger();
+		progress.start(progressSize);
 
 		// find lowest-MSE results for each tile, in parallel
-		blockIndexes.forEach(idxs -> {
+		executor.run(() -> blockIndexes.forEach(idxs -> {
 			idxs.parallel().forEach(pos -> {
-				synchronized (progressCallback) {
-					progressCallback.step(progressSize);
-				}
+				progress.checkCancelled();
+				progress.step();
 
 				int ix = pos % width;
 				int iy = pos / width;
-				boolean spaceForbidden = ((x + ix) < 1 || (y + iy) < 1 || (x + ix) > platform.getBoardWidth() || (y + iy) > platform.getBoardHeight());
-
-				if ((x + ix) == playerX && (y + iy) == playerY) {
-					spaceForbidden = true;
-				}
-
-				if (spaceForbidden) {
+				if (isTileForbidden(x + ix, y + iy, playerX, playerY)) {
 					previewResults[iy * width + ix] = emptyResult;
 					return;
 				}
 
-				ElementResult statlessResult = null;
-				float statlessMse = Float.MAX_VALUE;
-				ElementResult statfulResult = null;
-				float statfulMse = Float.MAX_VALUE;
 				int px = ix * visual.getCharWidth();
 				int py = iy * visual.getCharHeight();
-				ImageMseCalculator.Applier applyMseFunc = mseCalculator.applyMse(image, px, py);
-
-				for (ElementRuleResult ruleResult : ruleResultList) {
-					List<ElementResult> proposals = ruleResult.getResult();
-
-					float lowestLocalMse = statlessMse;
-					ElementResult lowestLocalResult = null;
-					float weight = 1.0f;
-
-					for (ElementResult result : proposals) {
-						float localMse = applyMseFunc.apply(result, lowestLocalMse) * weight;
-						if (localMse < lowestLocalMse) {
-							lowestLocalMse = localMse;
-							lowestLocalResult = result;
-						}
-					}
-
-					if (lowestLocalResult != null) {
-						if (!lowestLocalResult.isHasStat()) {
-							if (lowestLocalMse < statlessMse) {
-								statlessResult = lowestLocalResult;
-								statlessMse = lowestLocalMse;
-							}
-						}
-						if (lowestLocalMse < statfulMse) {
-							statfulResult = lowestLocalResult;
-							statfulMse = lowestLocalMse;
-						}
-					}
+				if (coarseDither != null) {
+					coarseDither.applyIncoming(image, ix, iy);
 				}
+				// runs wrapping around to the next row are not counted, so that rows don't wait on each other; a row
+				// is also never long enough for its runs to be split at 255 tiles
+				ElementResult runResult = rateDistortion && ix > 0 && !isTileForbidden(x + ix - 1, y + iy, playerX, playerY)
+						? previewResults[pos - 1] : null;
+				TileResult tileResult = getPreviousTileResult(reusableResult, dirtyTiles, candidateTableKey, width, height, pos, runResult);
+				if (tileResult == null) {
+					tileResult = getTileResult(candidateTableKey, candidates, image, px, py, runResult);
+				} else {
+					reusedTiles.incrementAndGet();
+				}
+				tileResults[pos] = tileResult;
 
 				// apply statless result to board
-				if (statlessResult == null) {
+				if (tileResult.getStatlessResult() == null) {
 					throw new RuntimeException();
 				}
+				ElementResult statlessResult = tileResult.getStatlessResult();
+				float statlessMse = tileResult.getStatlessMse();
+				ElementResult statfulResult = tileResult.getStatfulResult();
+				float statfulMse = tileResult.getStatfulMse();
 
-				if (coarseDitherStrength > 0.0f) {
-					ElementResult ditherResult = statfulResult != null ? statfulResult : statlessResult;
-					synchronized (ditherApplicationSync) {
-						applyCoarseDither(coarseDitherStrength, ditherMatrix, ditherMatrixSize, ditherMatrixOffset, image, ditherResult, px, py);
-					}
+				if (coarseDither != null) {
+					coarseDither.storeOutgoing(image, statfulResult != null ? statfulResult : statlessResult, ix, iy);
 				}
 
 				int idx = iy * width + ix;
@@ -376,6 +639,15 @@ public class ImageConverter {
 				previewMse[idx] = statlessMse;
 				board.setElement(x + ix, y + iy, statlessResult.getElement());
 				board.setColor(x + ix, y + iy, statlessResult.isText() ? statlessResult.getCharacter() : statlessResult.getColor());
+				if (progress.claimPartialResult()) {
+					// the listener renders the snapshot off the pool, so the worker can go back to its tiles
+					ElementResult[] snapshot = previewResults.clone();
+					progress.publishPartialResult(() -> {
+						Result partial = createPartialResult(snapshot, width, height, emptyResult);
+						return new Pair<>(partial, previewRenderer != null ? renderBoardPreview(previewRenderer, partial.previewResults,
+								x, y, width, height, playerX, playerY, blinkingDisabledFinal) : null);
+					});
+				}
 
 				if (statfulResult.isHasStat() && statfulMse < statlessMse) {
 					synchronized (statfulStrategies) {
@@ -384,22 +656,55 @@ public class ImageConverter {
 					}
 				}
 			});
-		});
+		}));
+
+		progress.checkCancelled();
 
-		// apply statful strategies - lowest to highest MSE
-		statfulStrategies.sort(Comparator.comparing(c -> {
+		// apply statful strategies - lowest to highest MSE; ties in tile order, as tiles may finish in any order
+		statfulStrategies.sort(Comparator.<Triplet<Coord2D, ElementResult, Float>, Float>comparing(c -> {
 			float pastMse = previewMse[c.getFirst().getY() * width + c.getFirst().getX()];
 		    float proposedMse = c.getThird();
 			return proposedMse - pastMse;
-		}));
+		}).thenComparingInt(c -> c.getFirst().getY() * width + c.getFirst().getX()));
 
 		int realMaxStatCount = Math.min(maxStatCount, platform.getZztEngineDefinition().getMaxStatCount());
 		int realMaxBoardSize = Math.min(maxBoardSize, platform.getZztEngineDefinition().getMaxBoardSize());
-		int boardSerializationSize = count(board::writeZ);
+		BoardSizeTracker boardSize = new BoardSizeTracker(board);
 		int addedStats = 0;
 
+		if (statAllocationMode == StatAllocationMode.OPTIMAL && !statfulStrategies.isEmpty()) {
+			// try the placements chosen under both budgets first; the rest follow in greedy order, to use up
+			// whatever budget is left once interactions between neighbouring placements are accounted for
+			int statLength = new Stat().lengthZ(platform.getZztEngineDefinition());
+			float[] gains = new float[statfulStrategies.size()];
+			int[] costs = new int[statfulStrategies.size()];
+			executor.run(() -> IntStream.range(0, statfulStrategies.size()).parallel().forEach(i -> {
+				Triplet<Coord2D, ElementResult, Float> strategyData = statfulStrategies.get(i);
+				Coord2D coords = strategyData.getFirst();
+				gains[i] = previewMse[coords.getY() * width + coords.getX()] - strategyData.getThird();
+				costs[i] = statLength + boardSize.getTileSizeDelta(x + coords.getX(), y + coords.getY(),
+						strategyData.getSecond().getElement(), strategyData.getSecond().getColor());
+			}));
+
+			int[] selected = StatAllocator.select(executor, gains, costs, realMaxStatCount, realMaxBoardSize - boardSize.getSize());
+			List<Triplet<Coord2D, ElementResult, Float>> ordered = new ArrayList<>(statfulStrategies.size());
+			BitSet selectedSet = new BitSet(statfulStrategies.size());
+			for (int i : selected) {
+				ordered.add(statfulStrategies.get(i));
+				selectedSet.set(i);
+			}
+			for (int i = 0; i < statfulStrategies.size(); i++) {
+				if (!selectedSet.get(i)) {
+					ordered.add(statfulStrategies.get(i));
+				}
+			}
+			statfulStrategies.clear();
+			statfulStrategies.addAll(ordered);
+		}
+
 		Stat stat = new Stat();
 		for (int i = 0; i < statfulStrategies.size(); i++) {
+			progress.checkCancelled();
 			Triplet<Coord2D, ElementResult, Float> strategyData = statfulStrategies.get(i);
 			Coord2D coords = strategyData.getFirst();
 			ElementResult result = strategyData.getSecond();
@@ -410,26 +715,18 @@ public class ImageConverter {
 
 			// only one mode - set stat P1
 			previewResults[coords.getY() * width + coords.getX()] = result;
-			board.setElement(x + coords.getX(), y + coords.getY(), result.getElement());
-			board.setColor(x + coords.getX(), y + coords.getY(), result.getColor());
+			boardSize.setTile(x + coords.getX(), y + coords.getY(), result.getElement(), result.getColor());
 
 			stat.setX(x + coords.getX());
 			stat.setY(y + coords.getY());
 			stat.setCycle(defStatCycle); // maybe we can reduce this to save CPU cycles?
 			stat.setP1(result.getCharacter());
 
-			if (boardSerializationSize < (realMaxBoardSize - 128)) {
-				// optimization: don't recalc full board size if only RLE could be impacted
-				boardSerializationSize += stat.lengthZ(platform.getZztEngineDefinition());
-			} else {
-				boardSerializationSize = count(board::writeZ) + stat.lengthZ(platform.getZztEngineDefinition());
-			}
-			if (boardSerializationSize > realMaxBoardSize) {
+			if (boardSize.getSize() + stat.lengthZ(platform.getZztEngineDefinition()) > realMaxBoardSize) {
 				previewResults[coords.getY() * width + coords.getX()] = prevResult;
-				board.setElement(x + coords.getX(), y + coords.getY(), prevElement);
-				board.setColor(x + coords.getX(), y + coords.getY(), prevColor);
+				boardSize.setTile(x + coords.getX(), y + coords.getY(), prevElement, prevColor);
 			} else {
-				board.addStat(stat);
+				boardSize.addStat(stat);
 				if ((++addedStats) >= realMaxStatCount) {
 					break;
 				}
@@ -477,143 +774,105 @@ public class ImageConverter {
 		}
 
 		// result
-		Result result = new Result(board, width, height, previewResults);
+		Result result = new Result(board, width, height, previewResults, candidateTableKey, tileResults, reusedTiles.get(),
+				coarseDither != null ? coarseDitherMatrixEnum : null, coarseDither != null ? coarseDitherStrength : 0.0f);
 
 		// preview
 		if (previewRenderer != null) {
-			preview = previewRenderer.render(platform.getBoardWidth(), platform.getBoardHeight(), (px, py) -> {
-				if ((px + 1) == playerX && (py + 1) == playerY) {
-					return 2;
-				}
-				int ix = (px + 1) - x;
-				int iy = (py + 1) - y;
-				if (ix >= 0 && iy >= 0 && ix < width && iy < height) {
-					return previewResults[iy * width + ix].getCharacter();
-				} else {
-					return 0;
-				}
-			}, (px, py) -> {
-				if ((px + 1) == playerX && (py + 1) == playerY) {
-					return 0x1F;
-				}
-				int ix = (px + 1) - x;
-				int iy = (py + 1) - y;
-				if (ix >= 0 && iy >= 0 && ix < width && iy < height) {
-					int color = previewResults[iy * width + ix].getColor();
-					return blinkingDisabledFinal ? color : (color & 0x7F);
-				} else {
-					return 0;
-				}
-			});
+			preview = renderBoardPreview(previewRenderer, previewResults, x, y, width, height, playerX, playerY, blinkingDisabledFinal);
 		}
 
 		return new Pair<>(result, preview);
 	}
 
-	private List<IntStream> getBlockIndexes(int width, int height, float coarseDitherStrength, DitherMatrix coarseDitherMatrixEnum) {
-		float[] ditherMatrix = coarseDitherMatrixEnum != null ? coarseDitherMatrixEnum.getMatrix() : null;
-		int ditherMatrixSize = coarseDitherMatrixEnum != null ? coarseDitherMatrixEnum.getDimSize() : 0;
-		int ditherMatrixOffset = coarseDitherMatrixEnum != null ? coarseDitherMatrixEnum.getDimOffset() : 0;
-
-		List<IntStream> blockIndexes;
-		if (coarseDitherStrength > 0.0f && ditherMatrix != null) {
-			blockIndexes = new ArrayList<>();
-			boolean[] addedIntegers = new boolean[width * height];
-			int addedIntCount = 0;
-
-			while (addedIntCount < addedIntegers.length) {
-				List<Integer> integers = new ArrayList<>();
-
-				for (int pos = 0; pos < width * height; pos++) {
-					if (addedIntegers[pos]) continue;
-					int ix = pos % width;
-					int iy = pos / width;
-
-					boolean ditherDepsFound = true;
-					for (int dmp = 0; dmp < ditherMatrix.length; dmp++) {
-						if (ditherMatrix[dmp] > 0.0f) {
-							int dmx = (dmp % ditherMatrixSize) - ditherMatrixOffset;
-							int dmy = (dmp / ditherMatrixSize) - ditherMatrixOffset;
-							int dmix = ix - dmx;
-							int dmiy = iy - dmy;
-							if (dmix >= 0 && dmiy >= 0 && dmix < width && dmiy < height) {
-								int dmipos = (dmiy * width) + dmix;
-								if (!addedIntegers[dmipos]) {
-									ditherDepsFound = false;
-									break;
-								}
-							}
-						}
-					}
+	// tile order for progressive previews: every 4th tile in both directions, then every 2nd, then the rest
+	// one level per column, holding that column's tile in each row
+	private static List<IntStream> getColumnLevels(int width, int height) {
+		List<IntStream> levels = new ArrayList<>(width);
+		for (int ix = 0; ix < width; ix++) {
+			final int currX = ix;
+			levels.add(IntStream.range(0, height).map(iy -> iy * width + currX));
+		}
+		return levels;
+	}
 
-					if (ditherDepsFound) {
-						integers.add(pos);
-						addedIntCount++;
-					}
-				}
+	private static List<IntStream> getInterleavedLevels(int width, int height) {
+		List<IntStream> levels = new ArrayList<>();
+		for (int step = 4; step >= 1; step /= 2) {
+			final int currStep = step;
+			levels.add(IntStream.range(0, width * height).filter(pos -> {
+				int ix = pos % width;
+				int iy = pos / width;
+				return ix % currStep == 0 && iy % currStep == 0 && (currStep == 4 || ix % (currStep * 2) != 0 || iy % (currStep * 2) != 0);
+			}));
+		}
+		return levels;
+	}
 
-				if (integers.isEmpty()) {
-					throw new RuntimeException("Unsatisfiable constraints for dither matrix!");
-				} else {
-					for (Integer pos : integers) {
-						addedIntegers[pos] = true;
-					}
-					blockIndexes.add(integers.stream().mapToInt(i -> i));
+	// snapshot of an unfinished search; tiles without a result yet take one from the coarser levels of the
+	// interleaved order, if found already
+	private static Result createPartialResult(ElementResult[] previewResults, int width, int height, ElementResult fill) {
+		ElementResult[] results = new ElementResult[width * height];
+		for (int iy = 0; iy < height; iy++) {
+			for (int ix = 0; ix < width; ix++) {
+				ElementResult result = previewResults[iy * width + ix];
+				if (result == null) {
+					result = previewResults[(iy & ~1) * width + (ix & ~1)];
 				}
+				if (result == null) {
+					result = previewResults[(iy & ~3) * width + (ix & ~3)];
+				}
+				results[iy * width + ix] = result != null ? result : fill;
 			}
-		} else {
-			blockIndexes = List.of(IntStream.range(0, width * height));
 		}
-		return blockIndexes;
+		return new Result(null, width, height, results, null, null, 0, null, 0.0f);
 	}
 
-	private void applyCoarseDither(float coarseDitherStrength, float[] ditherMatrix, int ditherMatrixSize, int ditherMatrixOffset, BufferedImage image, ElementResult ditherResult, int px, int py) {
-		float errorR = 0;
-		float errorG = 0;
-		float errorB = 0;
-		int errorDiv = visual.getCharWidth() * visual.getCharHeight();
-		int ebg = visual.getPalette()[ditherResult.getColor() >> 4];
-		int efg = visual.getPalette()[ditherResult.getColor() & 0xF];
-		for (int ey = 0; ey < visual.getCharHeight(); ey++) {
-			int epy = py + ey;
-			byte ech = visual.getCharData()[ditherResult.getCharacter() * visual.getCharHeight() + ey];
-			for (int ex = 0; ex < visual.getCharWidth(); ex++) {
-				int epx = px + ex;
-				int imagePx = image.getRGB(epx, epy);
-
-				int imageR = (imagePx >> 16) & 0xFF;
-				int imageG = (imagePx >> 8) & 0xFF;
-				int imageB = imagePx & 0xFF;
-
-				int stratPx = (((ech >> (7 - ex)) & 0x1) != 0) ? efg : ebg;
-				int stratR = (stratPx >> 16) & 0xFF;
-				int stratG = (stratPx >> 8) & 0xFF;
-				int stratB = stratPx & 0xFF;
-
-				errorR += (ColorUtils.sRtoR(imageR) - ColorUtils.sRtoR(stratR));
-				errorG += (ColorUtils.sRtoR(imageG) - ColorUtils.sRtoR(stratG));
-				errorB += (ColorUtils.sRtoR(imageB) - ColorUtils.sRtoR(stratB));
+	// renders a result's tiles as the preview shows them; a board preview also has the rest of the board around them
+	public static BufferedImage renderPreview(TextVisualRenderer previewRenderer, Result result, boolean blinkingDisabled) {
+		int width = result.getWidth();
+		int height = result.getHeight();
+		return previewRenderer.render(width, height, (ix, iy) -> {
+			if (ix >= 0 && iy >= 0 && ix < width && iy < height) {
+				return result.getCharacter(ix, iy);
+			} else {
+				return 0;
 			}
-		}
-		errorR /= errorDiv;
-		errorG /= errorDiv;
-		errorB /= errorDiv;
-		for (int ey = 0; ey < visual.getCharHeight(); ey++) {
-			int epy = py + ey;
-			for (int ex = 0; ex < visual.getCharWidth(); ex++) {
-				int epx = px + ex;
-				for (int dmp = 0; dmp < ditherMatrix.length; dmp++) {
-					if (ditherMatrix[dmp] > 0.0f) {
-						int dmx = (dmp % ditherMatrixSize) - ditherMatrixOffset;
-						int dmy = (dmp / ditherMatrixSize) - ditherMatrixOffset;
-						int epmx = epx + (visual.getCharWidth() * dmx);
-						int epmy = epy + (visual.getCharHeight() * dmy);
-						if (epmx >= 0 && epmy >= 0 && epmx < image.getWidth() && epmy < image.getHeight()) {
-							image.setRGB(epmx, epmy, ColorUtils.add(image.getRGB(epmx, epmy), errorR, errorG, errorB, ditherMatrix[dmp] * coarseDitherStrength));
-						}
-					}
-				}
+		}, (ix, iy) -> {
+			if (ix >= 0 && iy >= 0 && ix < width && iy < height) {
+				int color = result.getColor(ix, iy);
+				return blinkingDisabled ? color : (color & 0x7F);
+			} else {
+				return 0;
 			}
-		}
+		});
+	}
+
+	private BufferedImage renderBoardPreview(TextVisualRenderer previewRenderer, ElementResult[] previewResults, int x, int y, int width, int height,
+	                                         int playerX, int playerY, boolean blinkingDisabled) {
+		return previewRenderer.render(platform.getBoardWidth(), platform.getBoardHeight(), (px, py) -> {
+			if ((px + 1) == playerX && (py + 1) == playerY) {
+				return 2;
+			}
+			int ix = (px + 1) - x;
+			int iy = (py + 1) - y;
+			if (ix >= 0 && iy >= 0 && ix < width && iy < height) {
+				return previewResults[iy * width + ix].getCharacter();
+			} else {
+				return 0;
+			}
+		}, (px, py) -> {
+			if ((px + 1) == playerX && (py + 1) == playerY) {
+				return 0x1F;
+			}
+			int ix = (px + 1) - x;
+			int iy = (py + 1) - y;
+			if (ix >= 0 && iy >= 0 && ix < width && iy < height) {
+				int color = previewResults[iy * width + ix].getColor();
+				return blinkingDisabled ? color : (color & 0x7F);
+			} else {
+				return 0;
+			}
+		});
 	}
 }
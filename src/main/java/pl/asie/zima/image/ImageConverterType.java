@@ -25,7 +25,8 @@ import lombok.RequiredArgsConstructor;
 @RequiredArgsConstructor
 public enum ImageConverterType {
     TRIX("Trix"),
-    GMSE("GMse (Experimental)");
+    GMSE("GMse (Experimental)"),
+    COLOR_PAIR("Color Pair (Fast)");
 
     private final String name;
 
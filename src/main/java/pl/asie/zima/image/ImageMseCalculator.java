@@ -18,13 +18,36 @@
  */
 package pl.asie.zima.image;
 
-import java.awt.image.BufferedImage;
-
 public interface ImageMseCalculator {
 	@FunctionalInterface
 	interface Applier {
-		float apply(ElementResult result, float max);
+		float apply(int character, int color, float max);
+
+		default float apply(ElementResult result, float max) {
+			return apply(result.getCharacter(), result.getColor(), max);
+		}
+
+		// Returns the index (between start, inclusive, and end, exclusive) of the lowest-MSE color for this character,
+		// or -1 if none is below max; if found, its MSE is stored in bestMse[0]. Calculators which can solve for
+		// a color directly override this.
+		default int findBestColor(int character, int[] colors, int start, int end, float max, float[] bestMse) {
+			int bestIdx = -1;
+			for (int i = start; i < end; i++) {
+				float mse = apply(character, colors[i], max);
+				if (mse < max) {
+					max = mse;
+					bestIdx = i;
+				}
+			}
+			bestMse[0] = max;
+			return bestIdx;
+		}
+
+		// A cheaper approximation of this applier, used to prune candidates before the exact search; null if not available.
+		default Applier coarse() {
+			return null;
+		}
 	}
 
-	Applier applyMse(BufferedImage image, int px, int py);
+	Applier applyMse(LinearImage image, int px, int py);
 }
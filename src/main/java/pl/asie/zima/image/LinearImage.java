@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import lombok.Getter;
+import pl.asie.zima.util.ColorUtils;
+
+import java.awt.image.BufferedImage;
+
+// Conversion-scoped copy of the input image: packed sRGB pixels, plus the same pixels in linear light as planes,
+// so that the MSE calculators don't go through BufferedImage.getRGB() and sRGB conversions for every tile.
+public class LinearImage {
+	@Getter
+	private final int width;
+	@Getter
+	private final int height;
+	private final int[] rgb;
+	private final float[] linearR;
+	private final float[] linearG;
+	private final float[] linearB;
+
+	public LinearImage(BufferedImage image) {
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.rgb = image.getRGB(0, 0, width, height, null, 0, width);
+		this.linearR = new float[rgb.length];
+		this.linearG = new float[rgb.length];
+		this.linearB = new float[rgb.length];
+		for (int i = 0; i < rgb.length; i++) {
+			updateLinear(i);
+		}
+	}
+
+	private void updateLinear(int i) {
+		int col = rgb[i];
+		linearR[i] = ColorUtils.sRtoR((col >> 16) & 0xFF);
+		linearG[i] = ColorUtils.sRtoR((col >> 8) & 0xFF);
+		linearB[i] = ColorUtils.sRtoR(col & 0xFF);
+	}
+
+	public int getRGB(int x, int y) {
+		return rgb[y * width + x] & 0xFFFFFF;
+	}
+
+	public void setRGB(int x, int y, int color) {
+		int i = y * width + x;
+		rgb[i] = color & 0xFFFFFF;
+		updateLinear(i);
+	}
+
+	public float getLinearR(int x, int y) {
+		return linearR[y * width + x];
+	}
+
+	public float getLinearG(int x, int y) {
+		return linearG[y * width + x];
+	}
+
+	public float getLinearB(int x, int y) {
+		return linearB[y * width + x];
+	}
+
+	// row-major copy of a w * h tile's pixels
+	public int[] getTileRGB(int px, int py, int w, int h) {
+		int[] data = new int[w * h];
+		for (int cy = 0; cy < h; cy++) {
+			int offset = (py + cy) * width + px;
+			for (int cx = 0; cx < w; cx++) {
+				data[cy * w + cx] = rgb[offset + cx] & 0xFFFFFF;
+			}
+		}
+		return data;
+	}
+
+	// [palette color][pixel]: ColorUtils.distance() between each of the tile's pixels and each palette color
+	public float[][] getPaletteDistances(int px, int py, int w, int h, int[] palette) {
+		float[][] distances = new float[palette.length][w * h];
+		for (int cy = 0; cy < h; cy++) {
+			int offset = (py + cy) * width + px;
+			for (int cx = 0; cx < w; cx++) {
+				int col = rgb[offset + cx] & 0xFFFFFF;
+				for (int cc = 0; cc < palette.length; cc++) {
+					distances[cc][cy * w + cx] = ColorUtils.distance(col, palette[cc]);
+				}
+			}
+		}
+		return distances;
+	}
+}
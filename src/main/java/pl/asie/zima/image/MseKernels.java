@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+// Per-row arithmetic shared by the MSE calculators; callers check their MSE bound once per row.
+// If the JVM is started with "--add-modules jdk.incubator.vector", a Vector API implementation is used.
+public interface MseKernels {
+	// bits are in lane order (bit 0 = leftmost pixel); set pixels take the value from "on"
+	float selectRowSum(float[] off, float[] on, int offset, int length, int bits);
+
+	// sum of ColorUtils.distance() over the given pairs of colors
+	float distanceRowSum(int[] a, int aOffset, int[] b, int bOffset, int length);
+
+	// sum of ColorUtils.distance() between the given colors and one color
+	float distanceRowSum(int[] a, int aOffset, int b, int length);
+
+	static MseKernels get() {
+		return MseKernelsHolder.INSTANCE;
+	}
+
+	static MseKernels scalar() {
+		return ScalarMseKernels.INSTANCE;
+	}
+}
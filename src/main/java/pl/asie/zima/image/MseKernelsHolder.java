@@ -0,0 +1,42 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+final class MseKernelsHolder {
+	static final MseKernels INSTANCE = create();
+
+	private MseKernelsHolder() {
+
+	}
+
+	private static MseKernels create() {
+		if (!Boolean.parseBoolean(System.getProperty("zima.vectorKernels", "true"))) {
+			return ScalarMseKernels.INSTANCE;
+		}
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+			return ScalarMseKernels.INSTANCE;
+		}
+		try {
+			// loaded reflectively, so that the class is never linked without the module present
+			return (MseKernels) Class.forName("pl.asie.zima.image.VectorMseKernels").getDeclaredConstructor().newInstance();
+		} catch (Throwable t) {
+			return ScalarMseKernels.INSTANCE;
+		}
+	}
+}
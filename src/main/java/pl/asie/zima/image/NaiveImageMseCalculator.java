@@ -21,7 +21,6 @@ package pl.asie.zima.image;
 import pl.asie.libzzt.TextVisualData;
 import pl.asie.zima.util.ColorUtils;
 
-import java.awt.image.BufferedImage;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -37,22 +36,21 @@ public class NaiveImageMseCalculator implements ImageMseCalculator {
 	}
 	
 	@Override
-	public Applier applyMse(BufferedImage image, int px, int py) {
-		final int[] imgColorLut = new int[visual.getCharWidth() * visual.getCharHeight()];
-		for (int cy = 0; cy < visual.getCharHeight(); cy++) {
-			for (int cx = 0; cx < visual.getCharWidth(); cx++) {
-				imgColorLut[cy * visual.getCharWidth() + cx] = image.getRGB(px + cx, py + cy);
-			}
-		}
+	public Applier applyMse(LinearImage image, int px, int py) {
+		final int[] imgColorLut = image.getTileRGB(px, py, visual.getCharWidth(), visual.getCharHeight());
+		// [palette color][pixel]
+		final float[][] distances = image.getPaletteDistances(px, py, visual.getCharWidth(), visual.getCharHeight(), visual.getPalette());
 
-		return (proposed, maxMse) -> {
+		return (chr, proposedColor, maxMse) -> {
 			float mse = 0.0f;
 
-			int bgColor = visual.getPalette()[(proposed.getColor() >> 4) & (blinkingDisabled ? 0x07 : 0x0F)];
-			int fgColor = visual.getPalette()[proposed.getColor() & 0x0F];
+			int bgIndex = (proposedColor >> 4) & (blinkingDisabled ? 0x07 : 0x0F);
+			int fgIndex = proposedColor & 0x0F;
+			int bgColor = visual.getPalette()[bgIndex];
+			int fgColor = visual.getPalette()[fgIndex];
 			int charColor = 0;
 			boolean forcedCharColor = true;
-			switch (proposed.getCharacter()) {
+			switch (chr) {
 				case 176:
 					charColor = ColorUtils.mix(fgColor, bgColor, 0.75f);
 					break;
@@ -68,14 +66,12 @@ public class NaiveImageMseCalculator implements ImageMseCalculator {
 			}
 
 			if (!forcedCharColor) {
-				int coff = proposed.getCharacter() * visual.getCharHeight();
+				int coff = chr * visual.getCharHeight();
 				int ci = 0;
 				for (int cy = 0; cy < visual.getCharHeight(); cy++) {
 					int charLine = (int) visual.getCharData()[coff + cy] & 0xFF;
 					for (int cx = 0; cx < visual.getCharWidth(); cx++) {
-						int imgColor = imgColorLut[ci++];
-						int localCharColor = (charLine & (1 << (7 - cx))) != 0 ? fgColor : bgColor;
-						mse += ColorUtils.distance(imgColor, localCharColor);
+						mse += distances[(charLine & (1 << (7 - cx))) != 0 ? fgIndex : bgIndex][ci++];
 						if (mse > maxMse) {
 							break;
 						}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import pl.asie.zima.util.ColorUtils;
+
+final class ScalarMseKernels implements MseKernels {
+	static final ScalarMseKernels INSTANCE = new ScalarMseKernels();
+
+	private ScalarMseKernels() {
+
+	}
+
+	@Override
+	public float selectRowSum(float[] off, float[] on, int offset, int length, int bits) {
+		float sum = 0.0f;
+		for (int i = 0; i < length; i++) {
+			sum += ((bits >> i) & 1) != 0 ? on[offset + i] : off[offset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public float distanceRowSum(int[] a, int aOffset, int[] b, int bOffset, int length) {
+		float sum = 0.0f;
+		for (int i = 0; i < length; i++) {
+			sum += ColorUtils.distance(a[aOffset + i], b[bOffset + i]);
+		}
+		return sum;
+	}
+
+	@Override
+	public float distanceRowSum(int[] a, int aOffset, int b, int length) {
+		float sum = 0.0f;
+		for (int i = 0; i < length; i++) {
+			sum += ColorUtils.distance(a[aOffset + i], b);
+		}
+		return sum;
+	}
+}
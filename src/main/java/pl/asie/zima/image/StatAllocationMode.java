@@ -18,7 +18,19 @@
  */
 package pl.asie.zima.image;
 
-@FunctionalInterface
-public interface ProgressCallback {
-	void step(int maximum);
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+@Getter
+@RequiredArgsConstructor
+public enum StatAllocationMode {
+    GREEDY("Greedy"),
+    OPTIMAL("Budget-optimal");
+
+    private final String name;
+
+    @Override
+    public String toString() {
+        return name;
+    }
 }
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import lombok.RequiredArgsConstructor;
+
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+// Chooses statful placements under both the stat count and the board size budget, by Lagrangian relaxation of the
+// size budget: at a given price per byte, the best choice is the (at most maxCount) placements with the highest
+// positive gain - price * bytes. Many prices are evaluated in parallel, and the highest-gain choice which fits wins.
+final class StatAllocator {
+	// prices are spaced geometrically, 16 steps per halving, down to 2^-16 of the highest gain per byte
+	private static final int PRICE_STEPS = 256;
+
+	@RequiredArgsConstructor
+	private static class Selection {
+		private final int[] indices;
+		private final long bytes;
+		private final double gain;
+	}
+
+	private StatAllocator() {
+
+	}
+
+	// gains: MSE reduction of each placement; costs: bytes each placement adds to the board on its own
+	// returns the indices of the chosen placements, best first
+	static int[] select(ConversionExecutor executor, float[] gains, int[] costs, int maxCount, int maxBytes) {
+		if (gains.length == 0 || maxCount <= 0 || maxBytes <= 0) {
+			return new int[0];
+		}
+
+		float maxPrice = 0.0f;
+		for (int i = 0; i < gains.length; i++) {
+			if (costs[i] > 0) {
+				maxPrice = Math.max(maxPrice, gains[i] / costs[i]);
+			}
+		}
+		final float topPrice = maxPrice;
+
+		return executor.call(() -> IntStream.rangeClosed(0, PRICE_STEPS).parallel()
+				.mapToObj(step -> evaluate(gains, costs, maxCount, step == 0 ? 0.0f : topPrice * (float) Math.pow(2.0, -(PRICE_STEPS - step) / 16.0)))
+				.filter(s -> s.bytes <= maxBytes)
+				.max(Comparator.comparingDouble(s -> s.gain))
+				.map(s -> s.indices)
+				.orElseGet(() -> new int[0]));
+	}
+
+	private static Selection evaluate(float[] gains, int[] costs, int maxCount, float price) {
+		float[] scores = new float[gains.length];
+		for (int i = 0; i < gains.length; i++) {
+			scores[i] = gains[i] - price * costs[i];
+		}
+		int[] indices = IntStream.range(0, gains.length)
+				.filter(i -> scores[i] > 0.0f)
+				.boxed()
+				.sorted((a, b) -> Float.compare(scores[b], scores[a]))
+				.limit(maxCount)
+				.mapToInt(Integer::intValue)
+				.toArray();
+
+		long bytes = 0;
+		double gain = 0.0;
+		for (int i : indices) {
+			bytes += costs[i];
+			gain += gains[i];
+		}
+		return new Selection(indices, bytes, gain);
+	}
+}
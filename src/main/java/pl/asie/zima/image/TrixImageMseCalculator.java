@@ -21,7 +21,6 @@ package pl.asie.zima.image;
 import pl.asie.zima.util.ColorUtils;
 import pl.asie.libzzt.TextVisualData;
 
-import java.awt.image.BufferedImage;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -35,45 +34,63 @@ public class TrixImageMseCalculator implements ImageMseCalculator {
 	private final int[] charLutPrecalc;
 	private final int[][] charLut2x2Precalc;
 	private final boolean[][] charLut1x1Precalc;
+	private final int[] charRowBitsPrecalc;
+	private final int[] quadrantCoveragePrecalc;
+	private final int[] quadrantMixPrecalc;
 	private final float[] colDistPrecalc;
 	private final boolean blinkingDisabled;
 	private final int[][] blendingColorPrecalc;
 	private final Set<Integer> blendingChars = new HashSet<>();
+	private final MseKernels kernels = MseKernels.get();
+
+	private static final int QUADRANT_MIX_STEPS = 32;
+
+	private static int getQuadrant(int cx, int cy, int width, int height) {
+		return (cy >= (height >> 1) ? 2 : 0) | (cx >= (width >> 1) ? 1 : 0);
+	}
 
 	private static class ImageLutHolder {
+		// [palette color][pixel]
 		private final float[][] dataMacro1x1;
 		private final int[] dataMacro2x2;
+		private final int[] dataQuadrants;
 		private float maxDistance;
 
-		public ImageLutHolder(TextVisualData visual, BufferedImage image, int px, int py, int width, int height) {
-			dataMacro1x1 = new float[width * height][16];
-			int[] rgbCache = new int[width * height];
-			int offs = 0;
-			for (int cy = 0; cy < height; cy++) {
-				for (int cx = 0; cx < width; cx++, offs++) {
-					int col = image.getRGB(px + cx, py + cy);
-					float[] lut = dataMacro1x1[offs];
-					rgbCache[offs] = col;
-					for (int cc = 0; cc < 16; cc++) {
-						lut[cc] = ColorUtils.distance(col, visual.getPalette()[cc]);
-					}
-				}
-			}
+		public ImageLutHolder(TextVisualData visual, LinearImage image, int px, int py, int width, int height) {
+			dataMacro1x1 = image.getPaletteDistances(px, py, width, height, visual.getPalette());
 
+			// 2x2 averages, in linear light
 			dataMacro2x2 = new int[(width >> 1) * (height >> 1)];
-			offs = 0;
+			int offs = 0;
 			for (int cy = 0; cy < height; cy+=2) {
 				for (int cx = 0; cx < width; cx+=2, offs++) {
-					int offs2 = cy * width + cx;
-					dataMacro2x2[offs] = ColorUtils.mix4equal(
-							rgbCache[offs2],
-							rgbCache[offs2 + 1],
-							rgbCache[offs2 + width],
-							rgbCache[offs2 + width + 1]
-					);
+					int ix = px + cx;
+					int iy = py + cy;
+					float r = (image.getLinearR(ix, iy) + image.getLinearR(ix + 1, iy) + image.getLinearR(ix, iy + 1) + image.getLinearR(ix + 1, iy + 1)) / 4.0f;
+					float g = (image.getLinearG(ix, iy) + image.getLinearG(ix + 1, iy) + image.getLinearG(ix, iy + 1) + image.getLinearG(ix + 1, iy + 1)) / 4.0f;
+					float b = (image.getLinearB(ix, iy) + image.getLinearB(ix + 1, iy) + image.getLinearB(ix, iy + 1) + image.getLinearB(ix + 1, iy + 1)) / 4.0f;
+					dataMacro2x2[offs] = (ColorUtils.RtosR(r) << 16) | (ColorUtils.RtosR(g) << 8) | ColorUtils.RtosR(b);
 				}
 			}
 
+			float[] quadrantSums = new float[12];
+			int[] quadrantCounts = new int[4];
+			for (int cy = 0; cy < height; cy++) {
+				for (int cx = 0; cx < width; cx++) {
+					int q = getQuadrant(cx, cy, width, height);
+					quadrantSums[q * 3] += image.getLinearR(px + cx, py + cy);
+					quadrantSums[q * 3 + 1] += image.getLinearG(px + cx, py + cy);
+					quadrantSums[q * 3 + 2] += image.getLinearB(px + cx, py + cy);
+					quadrantCounts[q]++;
+				}
+			}
+			dataQuadrants = new int[4];
+			for (int q = 0; q < 4; q++) {
+				dataQuadrants[q] = (ColorUtils.RtosR(quadrantSums[q * 3] / quadrantCounts[q]) << 16)
+						| (ColorUtils.RtosR(quadrantSums[q * 3 + 1] / quadrantCounts[q]) << 8)
+						| ColorUtils.RtosR(quadrantSums[q * 3 + 2] / quadrantCounts[q]);
+			}
+
 			maxDistance = 0.0f;
 			for (int i = 0; i < dataMacro2x2.length; i++) {
 				for (int j = i + 1; j < dataMacro2x2.length; j++) {
@@ -127,6 +144,42 @@ public class TrixImageMseCalculator implements ImageMseCalculator {
 			}
 		}
 
+		charRowBitsPrecalc = new int[256 * visual.getCharHeight()];
+		for (int i = 0; i < charRowBitsPrecalc.length; i++) {
+			int charLine = (int) visual.getCharData()[i] & 0xFF;
+			int bits = 0;
+			for (int cx = 0; cx < visual.getCharWidth(); cx++) {
+				bits |= ((charLine >> (7 - cx)) & 1) << cx;
+			}
+			charRowBitsPrecalc[i] = bits;
+		}
+
+		int[] quadrantCounts = new int[4];
+		quadrantCoveragePrecalc = new int[256 * 4];
+		for (int c = 0; c < 256; c++) {
+			for (int cy = 0; cy < visual.getCharHeight(); cy++) {
+				int charLine = (int) visual.getCharData()[c * visual.getCharHeight() + cy] & 0xFF;
+				for (int cx = 0; cx < visual.getCharWidth(); cx++) {
+					int q = getQuadrant(cx, cy, visual.getCharWidth(), visual.getCharHeight());
+					quadrantCoveragePrecalc[c * 4 + q] += (charLine >> (7 - cx)) & 1;
+					if (c == 0) {
+						quadrantCounts[q]++;
+					}
+				}
+			}
+		}
+		for (int i = 0; i < quadrantCoveragePrecalc.length; i++) {
+			quadrantCoveragePrecalc[i] = Math.round(quadrantCoveragePrecalc[i] * QUADRANT_MIX_STEPS / (float) quadrantCounts[i & 3]);
+		}
+
+		quadrantMixPrecalc = new int[256 * (QUADRANT_MIX_STEPS + 1)];
+		for (int i = 0; i < quadrantMixPrecalc.length; i++) {
+			int col = i / (QUADRANT_MIX_STEPS + 1);
+			int bg = visual.getPalette()[col >> 4];
+			int fg = visual.getPalette()[col & 0x0F];
+			quadrantMixPrecalc[i] = ColorUtils.mix(bg, fg, (i % (QUADRANT_MIX_STEPS + 1)) / (float) QUADRANT_MIX_STEPS);
+		}
+
 		colDistPrecalc = new float[256];
 		for (int i = 0; i < 256; i++) {
 			int bg = visual.getPalette()[i >> 4];
@@ -165,7 +218,7 @@ public class TrixImageMseCalculator implements ImageMseCalculator {
 	}
 	
 	@Override
-	public Applier applyMse(BufferedImage image, int px, int py) {
+	public Applier applyMse(LinearImage image, int px, int py) {
 		final ImageLutHolder holder = new ImageLutHolder(visual, image, px, py, visual.getCharWidth(), visual.getCharHeight());
 		float[] mseContrastPrecalc = new float[256];
 		for (int i = 0; i < 256; i++) {
@@ -174,11 +227,13 @@ public class TrixImageMseCalculator implements ImageMseCalculator {
 			float contrastDiff = (imgContrast - chrContrast);
 			mseContrastPrecalc[i] = contrastReduction * contrastDiff * contrastDiff;
 		}
-		final int[] palette = visual.getPalette();
 		final int colorMask = blinkingDisabled ? 0xFF : 0x7F;
-		return (proposed, maxMse) -> {
-			int chr = proposed.getCharacter();
-			int col = proposed.getColor() & colorMask;
+		final int charWidth = visual.getCharWidth();
+		final int charHeight = visual.getCharHeight();
+		final int macroWidth = charWidth >> 1;
+		final int[] macroColors = new int[macroWidth];
+		final Applier exact = (chr, proposedColor, maxMse) -> {
+			int col = proposedColor & colorMask;
 
 			float mse = 0.0f;
 			int[] dataMacro2x2 = holder.dataMacro2x2;
@@ -190,8 +245,9 @@ public class TrixImageMseCalculator implements ImageMseCalculator {
 			if (mse <= maxMse) {
 				int[] blendingRatio = blendingColorPrecalc[chr];
 				if (blendingRatio != null) {
-					for (int i = 0; i < dataMacro2x2.length; i++) {
-						mse += ColorUtils.distance(blendingRatio[col], dataMacro2x2[i]);
+					int blendingColor = blendingRatio[col];
+					for (int i = 0; i < dataMacro2x2.length; i += macroWidth) {
+						mse += kernels.distanceRowSum(dataMacro2x2, i, blendingColor, macroWidth);
 						if (mse > maxMse) {
 							return Float.MAX_VALUE;
 						}
@@ -201,14 +257,12 @@ public class TrixImageMseCalculator implements ImageMseCalculator {
 
 				if (macroRatio < 1.0f) {
 					float invMacroRatio = ((1 - macroRatio) * 0.25f);
-					float[][] dataMacro1x1 = holder.dataMacro1x1;
-					boolean[] charData = charLut1x1Precalc[chr];
-					int bg = (col >> 4);
-					int fg = (col & 0x0F);
-
-					for (int dm1p = 0; dm1p < charData.length; dm1p++) {
-						int charColor = charData[dm1p] ? fg : bg;
-						mse += dataMacro1x1[dm1p][charColor] * invMacroRatio;
+					float[] bgDistances = holder.dataMacro1x1[col >> 4];
+					float[] fgDistances = holder.dataMacro1x1[col & 0x0F];
+					int charRowOffset = chr * charHeight;
+
+					for (int cy = 0; cy < charHeight; cy++) {
+						mse += kernels.selectRowSum(bgDistances, fgDistances, cy * charWidth, charWidth, charRowBitsPrecalc[charRowOffset + cy]) * invMacroRatio;
 						if (mse > maxMse) {
 							return Float.MAX_VALUE;
 						}
@@ -217,12 +271,12 @@ public class TrixImageMseCalculator implements ImageMseCalculator {
 
 				if (macroRatio > 0.0f) {
 					int[] charLutData = charLut2x2Precalc[chr];
-
-					for (int i = 0; i < dataMacro2x2.length; i++) {
-						int charLutIdx = charLutData[i];
-						int char2x2Lut = charLutPrecalc[col << 4 | charLutIdx];
-						float dist2x2 = ColorUtils.distance(char2x2Lut, dataMacro2x2[i]);
-						mse += dist2x2 * macroRatio;
+					int charLutOffset = col << 4;
+					for (int i = 0; i < dataMacro2x2.length; i += macroWidth) {
+						for (int j = 0; j < macroWidth; j++) {
+							macroColors[j] = charLutPrecalc[charLutOffset | charLutData[i + j]];
+						}
+						mse += kernels.distanceRowSum(macroColors, 0, dataMacro2x2, i, macroWidth) * macroRatio;
 						if (mse > maxMse) {
 							return Float.MAX_VALUE;
 						}
@@ -232,5 +286,35 @@ public class TrixImageMseCalculator implements ImageMseCalculator {
 
 			return mse;
 		};
+
+		// coarse approximation: contrast term, plus each quadrant's mean color against the character's coverage of it
+		final int[] quadrantColors = new int[4];
+		final float quadrantRatio = holder.dataMacro2x2.length / 4.0f;
+		final Applier coarse = (chr, proposedColor, maxMse) -> {
+			int col = proposedColor & colorMask;
+			float mse = holder.dataMacro2x2.length * mseContrastPrecalc[col];
+			if (mse > maxMse) {
+				return Float.MAX_VALUE;
+			}
+
+			int mixOffset = col * (QUADRANT_MIX_STEPS + 1);
+			int coverageOffset = chr << 2;
+			for (int q = 0; q < 4; q++) {
+				quadrantColors[q] = quadrantMixPrecalc[mixOffset + quadrantCoveragePrecalc[coverageOffset + q]];
+			}
+			return mse + kernels.distanceRowSum(quadrantColors, 0, holder.dataQuadrants, 0, 4) * quadrantRatio;
+		};
+
+		return new Applier() {
+			@Override
+			public float apply(int chr, int proposedColor, float maxMse) {
+				return exact.apply(chr, proposedColor, maxMse);
+			}
+
+			@Override
+			public Applier coarse() {
+				return coarse;
+			}
+		};
 	}
 }
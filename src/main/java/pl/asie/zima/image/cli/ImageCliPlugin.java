@@ -0,0 +1,516 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image.cli;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.Parameters;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import pl.asie.libzzt.Board;
+import pl.asie.libzzt.Element;
+import pl.asie.libzzt.TextVisualData;
+import pl.asie.libzzt.TextVisualRenderer;
+import pl.asie.libzzt.ZOutputStream;
+import pl.asie.zima.CliPlugin;
+import pl.asie.zima.Constants;
+import pl.asie.zima.gui.ElementJsonSerdes;
+import pl.asie.zima.image.ConversionExecutor;
+import pl.asie.zima.image.ConversionProgress;
+import pl.asie.zima.image.ImageConverter;
+import pl.asie.zima.image.ImageConverterRules;
+import pl.asie.zima.image.ImageConverterRuleset;
+import pl.asie.zima.image.gui.ZimaConversionProfile;
+import pl.asie.zima.image.gui.ZimaProfileSettings;
+import pl.asie.zima.image.gui.ZimaProfileTuner;
+import pl.asie.zima.util.FileUtils;
+import pl.asie.zima.util.ImageMetrics;
+import pl.asie.zima.util.ImageSequenceReader;
+import pl.asie.zima.util.ImageUtils;
+import pl.asie.zima.util.MZMWriter;
+import pl.asie.zima.util.Pair;
+import pl.asie.zima.util.PropertyHolder;
+import pl.asie.zima.util.ZimaPlatform;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ImageCliPlugin extends CliPlugin {
+	private static final Map<String, Pair<ZimaPlatform, ImageConverterRules>> PLATFORMS = Map.of(
+			"zzt", new Pair<>(ZimaPlatform.ZZT, new ImageConverterRules(ZimaPlatform.ZZT, false)),
+			"super-zzt", new Pair<>(ZimaPlatform.SUPER_ZZT, new ImageConverterRules(ZimaPlatform.SUPER_ZZT, true)),
+			"weave-2.5", new Pair<>(ZimaPlatform.WEAVE_ZZT_25, new ImageConverterRules(ZimaPlatform.WEAVE_ZZT_25, false)),
+			"weave-3.0", new Pair<>(ZimaPlatform.WEAVE_ZZT_30, new ImageConverterRules(ZimaPlatform.WEAVE_ZZT_30, false)),
+			"super-classiczoo", new Pair<>(ZimaPlatform.SUPER_CLASSICZOO, new ImageConverterRules(ZimaPlatform.SUPER_ZZT, true)),
+			"megazeux", new Pair<>(ZimaPlatform.MEGAZEUX, new ImageConverterRules())
+	);
+	private static final List<String> FORMATS = List.of("brd", "mzm", "png");
+
+	@Parameters(commandDescription = "Convert images using a saved image converter profile.")
+	public static class Args {
+		@Parameter(names = {"-p", "--profile"}, description = "Profile file, as saved by the image converter")
+		private String profile;
+
+		@Parameter(names = {"--platform"}, description = "Platform name (zzt, super-zzt, weave-2.5, weave-3.0, super-classiczoo, megazeux)")
+		private String platform = "zzt";
+
+		@Parameter(names = {"-r", "--ruleset"}, description = "Ruleset preset, used if the profile does not list allowed elements")
+		private String ruleset = "Default";
+
+		@Parameter(names = {"--width"}, description = "Output width, in characters")
+		private Integer width;
+
+		@Parameter(names = {"--height"}, description = "Output height, in characters")
+		private Integer height;
+
+		@Parameter(names = {"-f", "--format"}, description = "Output format (brd, mzm, png)")
+		private String format = "brd";
+
+		@Parameter(names = {"-o", "--output"}, description = "Output directory", required = true)
+		private String output;
+
+		@Parameter(names = {"-a", "--animation"}, description = "Treat each input (an animated GIF or a directory of numbered images) as a sequence of frames")
+		private boolean animation = false;
+
+		@Parameter(names = {"--reuse-threshold"}, description = "Largest mean squared color difference (0-1) at which a frame's tile reuses the previous frame's result")
+		private float reuseThreshold = 0.0f;
+
+		@Parameter(names = {"-j", "--threads"}, description = "Number of images converted at once")
+		private int threads = Runtime.getRuntime().availableProcessors();
+
+		@Parameter(names = {"--cores"}, description = "Number of threads the conversions run on, shared by all images converted at once")
+		private int cores = Runtime.getRuntime().availableProcessors();
+
+		@Parameter(names = {"--strip-rows"}, description = "Convert MZM output this many character rows at a time, reading only the part of the input each strip needs (for very large images)")
+		private int stripRows = 0;
+
+		@Parameter(names = {"--metrics"}, description = "Print the PSNR and SSIM of each conversion against the filtered input, and save its per-tile error map as <name>_error.png")
+		private boolean metrics = false;
+
+		@Parameter(names = {"--tune"}, description = "Instead of converting, try a grid of converter settings on each input (-j at once) and save the best as a profile")
+		private boolean tune = false;
+
+		@Parameter(description = "Input files or glob patterns", required = true)
+		private List<String> files = new ArrayList<>();
+	}
+
+	@Override
+	public String getName() {
+		return "image";
+	}
+
+	@Override
+	public void run(String[] argsStr) {
+		Args args = new Args();
+		JCommander jc = JCommander.newBuilder()
+				.addObject(args)
+				.build();
+		try {
+			jc.parse(argsStr);
+		} catch (ParameterException p) {
+			System.err.println(p.getMessage());
+			jc.usage();
+			return;
+		}
+
+		String format = args.format.toLowerCase(Locale.ROOT);
+		if (!FORMATS.contains(format)) {
+			System.err.println("Unknown output format: " + args.format);
+			return;
+		}
+		Pair<ZimaPlatform, ImageConverterRules> platform = PLATFORMS.get(args.platform.toLowerCase(Locale.ROOT));
+		if (platform == null) {
+			System.err.println("Unknown platform: " + args.platform);
+			return;
+		}
+		if (format.equals("brd") && !platform.getFirst().isUsesBoard()) {
+			System.err.println("Platform " + args.platform + " does not support board output!");
+			return;
+		}
+		if (args.stripRows > 0 && (!format.equals("mzm") || platform.getFirst().isUsesBoard() || args.animation)) {
+			System.err.println("Strip conversion is only supported for MZM output of single images!");
+			return;
+		}
+		if (args.tune && (args.animation || args.stripRows > 0)) {
+			System.err.println("Tuning is only supported for single images!");
+			return;
+		}
+		if (args.metrics && (args.animation || args.stripRows > 0 || args.tune)) {
+			System.err.println("Metrics are only supported for single image conversions!");
+			return;
+		}
+
+		try {
+			ZimaProfileSettings settings = new ZimaProfileSettings();
+			if (args.profile != null) {
+				Gson gson = new GsonBuilder().registerTypeAdapter(Element.class, ElementJsonSerdes.INSTANCE).create();
+				try (FileReader reader = new FileReader(args.profile)) {
+					settings = gson.fromJson(reader, ZimaProfileSettings.class);
+				}
+			}
+
+			ZimaConversionProfile profile = createProfile(args, platform.getFirst(), platform.getSecond(), settings);
+			List<File> inputs = expandInputs(args.files);
+			File outputDir = new File(args.output);
+			if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+				throw new IOException("Could not create output directory " + outputDir);
+			}
+
+			// one calculator, converter (with its candidate table and tile cache) and renderer, shared by all workers;
+			// all of their work runs on a pool of exactly the requested size
+			long timeStart = System.currentTimeMillis();
+			ConversionExecutor conversionExecutor = new ConversionExecutor("zima-convert", Math.max(1, args.cores), Thread.NORM_PRIORITY);
+			profile.setExecutor(conversionExecutor);
+			if (args.tune) {
+				try {
+					tune(profile, settings, inputs, outputDir, args.threads);
+				} finally {
+					conversionExecutor.shutdown();
+				}
+				return;
+			}
+
+			ImageConverter converter = profile.createImageConverter(profile.createMseCalculator());
+			TextVisualRenderer renderer = format.equals("png") ? profile.createRenderer() : null;
+			System.err.println("Converter prepared. [" + (System.currentTimeMillis() - timeStart) + " ms]");
+
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, args.threads));
+			List<Pair<File, Future<?>>> futures = new ArrayList<>();
+			try {
+				for (File input : inputs) {
+					if (args.animation) {
+						futures.add(new Pair<>(input, executor.submit(() -> {
+							convertSequence(profile, converter, renderer, input, outputDir, format, args.reuseThreshold);
+							return null;
+						})));
+					} else {
+						File output = new File(outputDir, getBaseName(input) + "." + format);
+						futures.add(new Pair<>(input, executor.submit(() -> {
+							if (args.stripRows > 0) {
+								convertStrips(profile, converter, input, output, args.stripRows);
+							} else {
+								convert(profile, converter, renderer, input, output, format, args.metrics);
+							}
+							return null;
+						})));
+					}
+				}
+
+				int failed = 0;
+				for (Pair<File, Future<?>> future : futures) {
+					try {
+						future.getSecond().get();
+					} catch (Exception e) {
+						Throwable cause = e.getCause() != null ? e.getCause() : e;
+						System.err.println("Could not convert " + future.getFirst() + ": " + cause.getMessage());
+						failed++;
+					}
+				}
+
+				System.err.println("Converted " + (inputs.size() - failed) + " of " + inputs.size() + (args.animation ? " sequences." : " images.") + " [" + (System.currentTimeMillis() - timeStart) + " ms]");
+				if (failed > 0) {
+					throw new RuntimeException(failed + " images could not be converted");
+				}
+			} finally {
+				executor.shutdownNow();
+				conversionExecutor.shutdown();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Conversion error: " + e.getMessage(), e);
+		}
+	}
+
+	private static void convert(ZimaConversionProfile profile, ImageConverter converter, TextVisualRenderer renderer, File input, File output, String format, boolean metrics) throws IOException {
+		long timeStart = System.currentTimeMillis();
+		BufferedImage inputImage = ImageIO.read(input);
+		if (inputImage == null) {
+			throw new IOException("Unsupported image format");
+		}
+
+		BufferedImage image = profile.getExecutor().call(() -> profile.prepareImage(inputImage));
+		Pair<ImageConverter.Result, BufferedImage> result = profile.getExecutor().call(() -> profile.convert(converter, renderer,
+				image, new ConversionProgress(), false, null, null));
+		write(result, output, format);
+
+		String metricsText = "";
+		if (metrics) {
+			ImageMetrics.Report report = profile.getExecutor().call(() -> profile.measure(image, result.getFirst()));
+			ImageIO.write(ImageMetrics.renderErrorMap(report, image.getWidth(), image.getHeight()), "png", new File(output.getParentFile(), getBaseName(output) + "_error.png"));
+			metricsText = String.format(" (PSNR %.2f dB, SSIM %.4f)", report.getPsnr(), report.getSsim());
+		}
+
+		System.err.println("Converted " + input + " -> " + output + metricsText + " [" + (System.currentTimeMillis() - timeStart) + " ms]");
+	}
+
+	private static void tune(ZimaConversionProfile profile, ZimaProfileSettings settings, List<File> inputs, File outputDir, int threads) throws IOException {
+		Gson gson = new GsonBuilder().registerTypeAdapter(Element.class, ElementJsonSerdes.INSTANCE).setPrettyPrinting().create();
+		ZimaProfileTuner tuner = new ZimaProfileTuner(profile);
+		List<ZimaProfileTuner.Trial> trials = ZimaProfileTuner.createDefaultGrid();
+
+		for (File input : inputs) {
+			long timeStart = System.currentTimeMillis();
+			BufferedImage inputImage = ImageIO.read(input);
+			if (inputImage == null) {
+				throw new IOException("Unsupported image format: " + input);
+			}
+
+			List<ZimaProfileTuner.TrialResult> results = tuner.run(inputImage, trials, threads, new ConversionProgress());
+			System.out.println(input + ":");
+			System.out.print(ZimaProfileTuner.formatReport(results));
+
+			File output = new File(outputDir, getBaseName(input) + ".json");
+			results.get(0).getTrial().applyTo(settings);
+			try (FileWriter writer = new FileWriter(output)) {
+				writer.write(gson.toJson(settings));
+			}
+			System.err.println("Tuned " + input + " -> " + output + " [" + (System.currentTimeMillis() - timeStart) + " ms]");
+		}
+	}
+
+	private static void convertStrips(ZimaConversionProfile profile, ImageConverter converter, File input, File output, int stripRows) throws IOException {
+		long timeStart = System.currentTimeMillis();
+		try (ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+			Iterator<ImageReader> readers = iis != null ? ImageIO.getImageReaders(iis) : Collections.emptyIterator();
+			if (!readers.hasNext()) {
+				throw new IOException("Unsupported image format");
+			}
+
+			ImageReader reader = readers.next();
+			try (OutputStream os = new BufferedOutputStream(new FileOutputStream(output))) {
+				// every strip seeks back to the image data, so the stream can't be forward-only
+				reader.setInput(iis, false, true);
+				MZMWriter.writeHeader(os, profile.getProperties().get(ZimaConversionProfile.CHARS_WIDTH), profile.getProperties().get(ZimaConversionProfile.CHARS_HEIGHT));
+				profile.convertStrips(converter, profile.createStripReader(reader), stripRows, new ConversionProgress(),
+						(fromRow, strip) -> MZMWriter.writeRows(os, strip.getWidth(), strip.getHeight(), strip::getCharacter, strip::getColor));
+			} finally {
+				reader.dispose();
+			}
+		}
+
+		System.err.println("Converted " + input + " -> " + output + " [" + (System.currentTimeMillis() - timeStart) + " ms]");
+	}
+
+	private static void convertSequence(ZimaConversionProfile profile, ImageConverter converter, TextVisualRenderer renderer, File input, File outputDir, String format, float reuseThreshold) throws IOException {
+		TextVisualData visual = profile.getProperties().get(ZimaConversionProfile.VISUAL_DATA);
+		String baseName = getBaseName(input);
+
+		ImageSequenceReader.read(input, new ImageSequenceReader.FrameConsumer() {
+			// the pixels each tile's current result was found for; comparing against the previous frame instead
+			// would let slow changes build up below the threshold forever
+			private BufferedImage reference;
+			private ImageConverter.Result previousResult;
+
+			@Override
+			public void accept(int frame, BufferedImage inputImage) throws IOException {
+				long timeStart = System.currentTimeMillis();
+				BufferedImage image = profile.getExecutor().call(() -> profile.prepareImage(inputImage));
+				BitSet dirtyTiles = ImageUtils.findChangedTiles(reference, image, visual.getCharWidth(), visual.getCharHeight(), reuseThreshold);
+
+				Pair<ImageConverter.Result, BufferedImage> result = profile.getExecutor().call(() -> profile.convert(converter, renderer, image,
+						new ConversionProgress(), false, previousResult, dirtyTiles));
+				ImageConverter.Result r = result.getFirst();
+				if (dirtyTiles == null || r.getReusedTiles() == 0) {
+					reference = image;
+				} else {
+					ImageUtils.copyTiles(image, reference, dirtyTiles, visual.getCharWidth(), visual.getCharHeight());
+				}
+				previousResult = r;
+
+				File output = new File(outputDir, String.format("%s_%04d.%s", baseName, frame, format));
+				write(result, output, format);
+
+				int tiles = r.getWidth() * r.getHeight();
+				System.err.println(String.format("%s frame %d: %d tiles reused, %d recomputed -> %s [%d ms]",
+						input.getName(), frame, r.getReusedTiles(), tiles - r.getReusedTiles(), output.getName(),
+						System.currentTimeMillis() - timeStart));
+			}
+		});
+	}
+
+	private static void write(Pair<ImageConverter.Result, BufferedImage> result, File output, String format) throws IOException {
+		switch (format) {
+			case "brd" -> {
+				Board board = result.getFirst().getBoard();
+				board.setName(getBaseName(output).replaceAll("[^\\x20-\\x7E]", "?"));
+				try (FileOutputStream fos = new FileOutputStream(output); ZOutputStream zos = new ZOutputStream(fos, board.getEngineDefinition())) {
+					board.writeZ(zos);
+				}
+			}
+			case "mzm" -> {
+				try (FileOutputStream fos = new FileOutputStream(output)) {
+					ImageConverter.Result r = result.getFirst();
+					MZMWriter.write(fos, r.getWidth(), r.getHeight(), r::getCharacter, r::getColor);
+				}
+			}
+			case "png" -> ImageIO.write(result.getSecond(), "png", output);
+		}
+	}
+
+	private static ZimaConversionProfile createProfile(Args args, ZimaPlatform platform, ImageConverterRules rules, ZimaProfileSettings settings) throws IOException {
+		ZimaConversionProfile profile = new ZimaConversionProfile();
+		PropertyHolder properties = profile.getProperties();
+
+		byte[] charset = settings.getCustomCharset();
+		if (charset == null) {
+			charset = FileUtils.readAll(Objects.requireNonNull(ImageCliPlugin.class.getClassLoader().getResourceAsStream("8x14.bin")));
+		}
+		int[] palette = settings.getCustomPalette() != null ? settings.getCustomPalette() : Constants.EGA_PALETTE;
+		properties.set(ZimaConversionProfile.VISUAL_DATA, new TextVisualData(8, charset.length >> 8, charset, palette));
+
+		properties.set(ZimaConversionProfile.PLATFORM, platform);
+		properties.set(ZimaConversionProfile.CHARS_WIDTH, args.width != null ? args.width : platform.getDefaultBoardWidth());
+		properties.set(ZimaConversionProfile.CHARS_HEIGHT, args.height != null ? args.height : platform.getDefaultBoardHeight());
+		if (platform.getZztEngineDefinition() != null) {
+			properties.set(ZimaConversionProfile.MAX_STAT_COUNT, platform.getZztEngineDefinition().getMaxStatCount());
+		}
+		if (settings.getMaxStatCount() != null) {
+			properties.set(ZimaConversionProfile.MAX_STAT_COUNT, settings.getMaxStatCount());
+		}
+
+		boolean blinkingDisabled = !platform.isSupportsBlinking() || (settings.getColorsBlink() != null && !settings.getColorsBlink());
+		properties.set(ZimaConversionProfile.BLINKING_DISABLED, blinkingDisabled);
+
+		if (settings.getAllowedCharacters() != null) {
+			properties.set(ZimaConversionProfile.ALLOWED_CHARACTERS, Arrays.stream(settings.getAllowedCharacters()).boxed().collect(Collectors.toSet()));
+		}
+		if (settings.getAllowedColorPairs() != null) {
+			properties.set(ZimaConversionProfile.ALLOWED_COLORS, Arrays.stream(settings.getAllowedColorPairs()).boxed().collect(Collectors.toSet()));
+		} else if (settings.getAllowedColors() != null) {
+			// older profiles only list single colors; allow every pair made up of them, like the palette selector does
+			Set<Integer> allowedColors = Arrays.stream(settings.getAllowedColors()).boxed().collect(Collectors.toSet());
+			Set<Integer> allowedPairs = new HashSet<>();
+			for (int i = 0; i < (blinkingDisabled ? 256 : 128); i++) {
+				if (allowedColors.contains(i & 0x0F) && allowedColors.contains(blinkingDisabled ? (i >> 4) : ((i >> 4) & 0x07))) {
+					allowedPairs.add(i);
+				}
+			}
+			properties.set(ZimaConversionProfile.ALLOWED_COLORS, allowedPairs);
+		}
+
+		if (platform.isUsesBoard()) {
+			ImageConverterRuleset ruleset;
+			if (settings.getAllowedElements() != null) {
+				ruleset = new ImageConverterRuleset(settings.getAllowedElements());
+			} else {
+				ruleset = rules.getRuleset(args.ruleset);
+				if (ruleset == null) {
+					throw new IOException("Unknown ruleset: " + args.ruleset);
+				}
+			}
+			properties.set(ZimaConversionProfile.RULESET, ruleset);
+		}
+
+		if (settings.getContrastReduction() != null) {
+			properties.set(ZimaConversionProfile.TRIX_CONTRAST_REDUCTION, settings.getContrastReduction());
+		}
+		if (settings.getAccurateApproximate() != null) {
+			properties.set(ZimaConversionProfile.TRIX_ACCURATE_APPROXIMATE, settings.getAccurateApproximate());
+		}
+		if (settings.getPruneCandidates() != null) {
+			properties.set(ZimaConversionProfile.TRIX_PRUNE_CANDIDATES, settings.getPruneCandidates());
+		}
+		if (settings.getRateDistortionLambda() != null) {
+			properties.set(ZimaConversionProfile.RATE_DISTORTION_LAMBDA, settings.getRateDistortionLambda());
+		}
+		if (settings.getCoarseDitherStrength() != null) {
+			properties.set(ZimaConversionProfile.COARSE_DITHER_STRENGTH, settings.getCoarseDitherStrength());
+		}
+		if (settings.getStatAllocationMode() != null) {
+			properties.set(ZimaConversionProfile.STAT_ALLOCATION_MODE, settings.getStatAllocationMode());
+		}
+		if (settings.getImageConverterType() != null) {
+			properties.set(ZimaConversionProfile.IMAGE_CONVERTER_TYPE, settings.getImageConverterType());
+		}
+		if (settings.getAspectRatioPreservationMode() != null) {
+			properties.set(ZimaConversionProfile.ASPECT_RATIO_PRESERVATION_MODE, settings.getAspectRatioPreservationMode());
+		}
+
+		return profile;
+	}
+
+	private static List<File> expandInputs(List<String> patterns) throws IOException {
+		List<File> files = new ArrayList<>();
+		for (String pattern : patterns) {
+			String normalized = pattern.replace(File.separatorChar, '/');
+			int globStart = -1;
+			for (int i = 0; i < normalized.length(); i++) {
+				if ("*?[{".indexOf(normalized.charAt(i)) >= 0) {
+					globStart = i;
+					break;
+				}
+			}
+			if (globStart < 0) {
+				files.add(new File(pattern));
+				continue;
+			}
+
+			// walk from the last directory before the first wildcard
+			int baseEnd = normalized.lastIndexOf('/', globStart);
+			Path base = Paths.get(baseEnd >= 0 ? normalized.substring(0, baseEnd + 1) : ".");
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + normalized.substring(baseEnd + 1));
+			try (Stream<Path> stream = Files.walk(base)) {
+				stream.filter(Files::isRegularFile)
+						.filter(p -> matcher.matches(base.relativize(p)))
+						.sorted()
+						.forEach(p -> files.add(p.toFile()));
+			}
+		}
+		return files;
+	}
+
+	private static String getBaseName(File file) {
+		String basename = file.getName();
+		int extIndex = basename.lastIndexOf('.');
+		if (extIndex > 0) {
+			basename = basename.substring(0, extIndex);
+		}
+		return basename;
+	}
+}
@@ -20,20 +20,32 @@ package pl.asie.zima.image.gui;
 
 import lombok.Getter;
 import lombok.Setter;
+import pl.asie.zima.image.ConversionProgress;
 import pl.asie.zima.image.ImageConverter;
+import pl.asie.zima.util.ImageMetrics;
 import pl.asie.zima.util.LengthMeasuringOutputStream;
 import pl.asie.zima.util.Pair;
 import pl.asie.libzzt.Board;
 import pl.asie.libzzt.ZOutputStream;
 
+import javax.swing.*;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
 public class ZimaAsynchronousRenderer {
+	private static final int PROGRESS_UPDATE_INTERVAL_MS = 50;
+	private static final int PARTIAL_RESULT_INTERVAL_MS = 200;
+
 	private final ZimaFrontendSwing parent;
 	private ImageConverter.Result outputResult;
 	private BufferedImage outputImage;
 	private BufferedImage outputPreviewImage;
+	// tile errors of the last full render, against the filtered input
+	private BufferedImage outputErrorMap;
 
 	private final Object stateLock = new Object();
 	private final Object outputWriteLock = new Object();
@@ -42,6 +54,25 @@ public class ZimaAsynchronousRenderer {
 	private Thread workThreadFast;
 	private boolean queued = false;
 	private boolean queuedFast = false;
+	// set under stateLock; the full render's thread clears the profile's reuse state before its next conversion,
+	// so that it never changes under a running one
+	private boolean clearPreviousConversions = false;
+	// progress of the current renders; also used to cancel them once their parameters are stale
+	private volatile ConversionProgress progress;
+	private volatile ConversionProgress progressFast;
+	private final Timer progressTimer;
+	// partial results of the full render are rendered here, off both the conversion pool and the event thread
+	private final ExecutorService partialResultRenderer = Executors.newSingleThreadExecutor((r) -> {
+		Thread thread = new Thread(r, "zima-partial-preview");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// guarded by outputWriteLock: the newest snapshot not yet rendered and its render, and the render whose output
+	// was published last
+	private Supplier<Pair<ImageConverter.Result, BufferedImage>> pendingPartialResult;
+	private ConversionProgress pendingPartialProgress;
+	private ConversionProgress publishedProgress;
+	private volatile boolean partialResultPainted;
 
 	@Getter
 	@Setter
@@ -52,20 +83,64 @@ public class ZimaAsynchronousRenderer {
 
 		this.workThreadFast = new Thread(this::rerenderFastSync);
 		this.workThreadFast.start();
+
+		// the workers never touch Swing; the progress bar and partial results are sampled on the event thread instead
+		this.progressTimer = new Timer(PROGRESS_UPDATE_INTERVAL_MS, (e) -> {
+			ConversionProgress progress = this.progress;
+			if (progress != null) {
+				this.parent.getRenderProgress().setMaximum(progress.getMaximum());
+				this.parent.getRenderProgress().setValue(progress.getValue());
+			}
+			if (this.partialResultPainted) {
+				this.partialResultPainted = false;
+				this.parent.updateCanvas();
+			}
+		});
+		this.progressTimer.start();
 	}
 
 	private void rerenderOnce(ZimaConversionProfile profile, boolean fast) {
 		BufferedImage image = this.parent.getInputImage();
 		if (image != null) {
+			ConversionProgress progress = new ConversionProgress();
+			synchronized (this.stateLock) {
+				// parameters changed again since this render was dequeued
+				if (fast ? this.queuedFast : this.queued) {
+					progress.cancel();
+				}
+				if (fast) {
+					this.progressFast = progress;
+				} else {
+					this.progress = progress;
+					if (this.clearPreviousConversions) {
+						this.clearPreviousConversions = false;
+						profile.clearPreviousConversions();
+					}
+				}
+			}
 			if (!fast) {
-				this.parent.getRenderProgress().setValue(0);
+				// paint the full render as it is refined, in place of the fast preview
+				progress.setPartialResultListener(PARTIAL_RESULT_INTERVAL_MS, (partial) -> {
+					synchronized (outputWriteLock) {
+						boolean scheduled = pendingPartialResult != null;
+						pendingPartialResult = partial;
+						pendingPartialProgress = progress;
+						if (!scheduled) {
+							partialResultRenderer.execute(this::renderPartialResult);
+						}
+					}
+				});
 			}
 
-			Pair<ImageConverter.Result, BufferedImage> output = profile.convert(image, !fast ? ((max) -> {
-				this.parent.getRenderProgress().setMaximum(max);
-				this.parent.getRenderProgress().setValue(this.parent.getRenderProgress().getValue() + 1);
-			}) : ((max) -> {}), fast);
+			Pair<ImageConverter.Result, BufferedImage> output;
+			try {
+				output = profile.convert(image, progress, fast);
+			} catch (CancellationException e) {
+				// a newer render is queued
+				return;
+			}
 
+			boolean published = false;
 			synchronized (outputWriteLock) {
 				if (fast) {
 					outputPreviewImage = output.getSecond();
@@ -73,12 +148,19 @@ public class ZimaAsynchronousRenderer {
 					if (!this.queued || !useFastPreview) {
 						outputResult = output.getFirst();
 						outputImage = output.getSecond();
+						outputErrorMap = null;
+						published = true;
 					}
+					// partial results still being rendered are older than this one
+					pendingPartialResult = null;
+					pendingPartialProgress = null;
+					publishedProgress = progress;
 				}
 				this.parent.updateCanvas();
 			}
 
 			if (!fast) {
+				String statusText;
 				if (output.getFirst().getBoard() != null) {
 					// calculate board data
 					int statCount = output.getFirst().getBoard().getStats().size() - 1;
@@ -91,9 +173,25 @@ public class ZimaAsynchronousRenderer {
 						// pass
 					}
 
-					this.parent.getStatusLabel().setText(String.format("%d bytes, %d stats", boardSize, statCount));
+					statusText = String.format("%d bytes, %d stats", boardSize, statCount);
+					this.parent.getStatusLabel().setText(statusText);
 				} else {
-					this.parent.getStatusLabel().setText("Conversion complete.");
+					statusText = "Conversion complete";
+					this.parent.getStatusLabel().setText(statusText + ".");
+				}
+
+				// the metrics are only worth the wait if this render is still current once they are done
+				if (published && !this.queued) {
+					BufferedImage filteredImage = profile.getFilteredImage();
+					ImageMetrics.Report metrics = profile.getExecutor().call(() -> profile.measure(filteredImage, output.getFirst()));
+					synchronized (outputWriteLock) {
+						if (outputResult != output.getFirst()) {
+							return;
+						}
+						outputErrorMap = ImageMetrics.renderErrorMap(metrics, filteredImage.getWidth(), filteredImage.getHeight());
+						this.parent.updateCanvas();
+					}
+					this.parent.getStatusLabel().setText(String.format("%s, PSNR %.2f dB, SSIM %.4f", statusText, metrics.getPsnr(), metrics.getSsim()));
 				}
 			}
 		} else {
@@ -102,16 +200,40 @@ public class ZimaAsynchronousRenderer {
 			} else {
 				outputResult = null;
 				outputImage = null;
+				outputErrorMap = null;
 			}
 			this.parent.updateCanvas();
 			this.parent.getStatusLabel().setText("Ready.");
 		}
 	}
 
+	private void renderPartialResult() {
+		Supplier<Pair<ImageConverter.Result, BufferedImage>> partial;
+		ConversionProgress progress;
+		synchronized (outputWriteLock) {
+			partial = pendingPartialResult;
+			progress = pendingPartialProgress;
+			pendingPartialResult = null;
+			pendingPartialProgress = null;
+		}
+		if (partial == null || progress.isCancelled()) {
+			return;
+		}
+
+		BufferedImage image = partial.get().getSecond();
+		synchronized (outputWriteLock) {
+			if (image != null && publishedProgress != progress && !progress.isCancelled() && (!this.queued || !useFastPreview)) {
+				outputImage = image;
+				partialResultPainted = true;
+			}
+		}
+	}
+
 	private void rerenderSync() {
 		synchronized (outputWriteLock) {
 			outputResult = null;
 			outputImage = null;
+			outputErrorMap = null;
 		}
 
 		while (true) {
@@ -184,6 +306,7 @@ public class ZimaAsynchronousRenderer {
 		synchronized (this.stateLock) {
 			if (queued) {
 				queuedFast = true;
+				cancel(progressFast);
 
 				if (workThread == null || !workThread.isAlive()) {
 					workThread = new Thread(this::rerenderSync);
@@ -193,11 +316,25 @@ public class ZimaAsynchronousRenderer {
 		}
 	}
 
+	// makes the next full render start from scratch instead of reusing tiles from earlier ones
+	public void clearPreviousConversions() {
+		synchronized (this.stateLock) {
+			this.clearPreviousConversions = true;
+		}
+	}
+
 	public void rerender() {
 		synchronized (this.stateLock) {
 			if (!queued) {
 				queued = true;
 			}
+			cancel(progress);
+		}
+	}
+
+	private static void cancel(ConversionProgress progress) {
+		if (progress != null) {
+			progress.cancel();
 		}
 	}
 
@@ -213,6 +350,12 @@ public class ZimaAsynchronousRenderer {
 		}
 	}
 
+	public BufferedImage getOutputErrorMap() {
+		synchronized (outputWriteLock) {
+			return outputErrorMap;
+		}
+	}
+
 	public BufferedImage getOutputImage() {
 		synchronized (outputWriteLock) {
 			return (outputImage == null && useFastPreview) ? outputPreviewImage : outputImage;
@@ -18,6 +18,12 @@
  */
 package pl.asie.zima.image.gui;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import lombok.Data;
 import lombok.Getter;
 import pl.asie.zima.util.ZimaPlatform;
 import pl.asie.libzzt.TextVisualData;
@@ -25,9 +31,17 @@ import pl.asie.libzzt.TextVisualRenderer;
 import pl.asie.zima.util.*;
 import pl.asie.zima.image.*;
 
+import javax.imageio.ImageReader;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 public class ZimaConversionProfile {
     private static final PropertyAffect SCALED_IMAGE = new PropertyAffect();
@@ -48,10 +62,14 @@ public class ZimaConversionProfile {
     public static final Property<Integer> STAT_CYCLE = Property.create("output.statCycle", 0);
     public static final Property<Integer> MAX_STAT_COUNT = Property.create("converter.maxStatCount", 150);
     public static final Property<Integer> MAX_BOARD_SIZE = Property.create("converter.maxBoardSize", 20002);
+    public static final Property<StatAllocationMode> STAT_ALLOCATION_MODE = Property.create("converter.statAllocationMode", StatAllocationMode.GREEDY, IMAGE_CONVERTER);
 
     public static final Property<ImageConverterType> IMAGE_CONVERTER_TYPE = Property.create("converter.type", ImageConverterType.TRIX, MSE_CALCULATOR);
     public static final Property<Float> TRIX_CONTRAST_REDUCTION = Property.create("converter.trix.contrastReduction", 0.0035f, MSE_CALCULATOR);
     public static final Property<Float> TRIX_ACCURATE_APPROXIMATE = Property.create("converter.trix.accurateApproximate", 0.45f, MSE_CALCULATOR);
+    // 0 = exhaustive search
+    public static final Property<Integer> TRIX_PRUNE_CANDIDATES = Property.create("converter.trix.pruneCandidates", 0, IMAGE_CONVERTER);
+    public static final Property<Float> RATE_DISTORTION_LAMBDA = Property.create("converter.rateDistortionLambda", 0.0f, IMAGE_CONVERTER);
 
     public static final Property<Float> BRIGHTNESS = Property.create("image.colorFilter.brightness", 0.0f, FILTERED_IMAGE);
     public static final Property<Float> CONTRAST = Property.create("image.colorFilter.contrast", 0.0f, FILTERED_IMAGE);
@@ -72,68 +90,110 @@ public class ZimaConversionProfile {
     public static final Property<Float> COARSE_DITHER_STRENGTH = Property.create("converter.coarseDither.strength", 0.0f);
     public static final Property<DitherMatrix> COARSE_DITHER_MATRIX = Property.create("converter.coarseDither.matrix", DitherMatrix.FLOYD_STEINBERG);
 
+    // every property which can affect a conversion's output
+    private static final List<Property<?>> RESULT_KEY_PROPERTIES = List.of(
+            VISUAL_DATA, PLATFORM,
+            CHARS_WIDTH, CHARS_HEIGHT, BOARD_X, BOARD_Y, PLAYER_X, PLAYER_Y, STAT_CYCLE,
+            MAX_STAT_COUNT, MAX_BOARD_SIZE, STAT_ALLOCATION_MODE,
+            IMAGE_CONVERTER_TYPE, TRIX_CONTRAST_REDUCTION, TRIX_ACCURATE_APPROXIMATE, TRIX_PRUNE_CANDIDATES, RATE_DISTORTION_LAMBDA,
+            BRIGHTNESS, CONTRAST, SATURATION, ASPECT_RATIO_PRESERVATION_MODE,
+            CROP_LEFT, CROP_RIGHT, CROP_TOP, CROP_BOTTOM,
+            RULESET, FAST_RULESET, ALLOWED_CHARACTERS, ALLOWED_COLORS, BLINKING_DISABLED,
+            COARSE_DITHER_STRENGTH, COARSE_DITHER_MATRIX
+    );
+    private static final int RESULT_CACHE_SIZE = 16;
+
     @Getter
     private final PropertyHolder properties = new PropertyHolder();
 
     private transient BufferedImage inputImage;
-    private transient BufferedImage scaledImage;
+    // scaled and cropped, but not yet filtered, so that filter changes don't rescale the input
+    private transient ImagePreprocessor.LinearRaster scaledImage;
     @Getter
     private transient BufferedImage filteredImage;
     private transient ImageMseCalculator mseCalculator;
     private transient TextVisualRenderer renderer;
     private transient ImageConverter converter;
+    // the pool conversions run on; see setExecutor()
+    @Getter
+    private transient ConversionExecutor executor = ConversionExecutor.common();
+    // previous conversions, for the full [0] and fast [1] modes; used to only reconvert changed tiles
+    private final transient PreviousConversion[] previousConversions = new PreviousConversion[2];
+    // completed conversions, keyed by getResultKey(), so that flipping back to earlier settings is instant;
+    // values are softly referenced, so memory pressure can drop them
+    private final transient Cache<HashCode, Pair<ImageConverter.Result, BufferedImage>> resultCache = CacheBuilder.newBuilder()
+            .maximumSize(RESULT_CACHE_SIZE).softValues().build();
+    // bumped whenever a different input image is given
+    private transient int inputImageGeneration;
+
+    @Data
+    private static class PreviousConversion {
+        private final ImageConverter converter;
+        private final BufferedImage image;
+        private final ImageConverter.Result result;
+    }
 
     public ZimaConversionProfile() {
         invalidate();
     }
 
+    // a profile with the same settings and executor, without any of the cached images, converters or conversions
+    public ZimaConversionProfile copy() {
+        ZimaConversionProfile copy = new ZimaConversionProfile();
+        properties.copyTo(copy.getProperties());
+        copy.setExecutor(executor);
+        return copy;
+    }
+
+    // makes the next conversions start from scratch instead of reusing tiles from earlier ones
+    public void clearPreviousConversions() {
+        Arrays.fill(previousConversions, null);
+    }
+
     public void invalidate() {
         properties.affectAll(SCALED_IMAGE, FILTERED_IMAGE, MSE_CALCULATOR, TEXT_VISUAL_RENDERER, IMAGE_CONVERTER);
     }
     
-    private BufferedImage filterImage(BufferedImage input) {
-        float brightness = properties.get(BRIGHTNESS);
-        float contrast = properties.get(CONTRAST);
-        float saturation = properties.get(SATURATION);
-        
-        BufferedImage output = new BufferedImage(input.getWidth(), input.getHeight(), BufferedImage.TYPE_INT_RGB);
-        float contrastMul = (1.05f * (1.0f + contrast)) / (1.0f * (1.05f - contrast));
-        float saturationMul = (saturation + 1.0f);
-        boolean useYuv = Math.abs(saturation) > 1e-5f;
-
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                int rgbIn = input.getRGB(x, y);
-                float rIn = ColorUtils.sRtoR((rgbIn >> 16) & 0xFF);
-                float gIn = ColorUtils.sRtoR((rgbIn >> 8) & 0xFF);
-                float bIn = ColorUtils.sRtoR(rgbIn & 0xFF);
-
-                rIn = rIn + brightness;
-                gIn = gIn + brightness;
-                bIn = bIn + brightness;
-
-                rIn = (rIn - 0.5f) * contrastMul + 0.5f;
-                gIn = (gIn - 0.5f) * contrastMul + 0.5f;
-                bIn = (bIn - 0.5f) * contrastMul + 0.5f;
-
-                if (useYuv) {
-                    float yIn = 0.299f * rIn + 0.587f * gIn + 0.114f * bIn;
-                    float uIn = -0.14713f * rIn + -0.28886f * gIn + 0.436f * bIn;
-                    float vIn = 0.615f * rIn + -0.51499f * gIn + -0.10001f * bIn;
-
-                    uIn *= saturationMul;
-                    vIn *= saturationMul;
-
-                    rIn = yIn + 1.13983f * vIn;
-                    gIn = yIn + -0.39465f * uIn + -0.58060f * vIn;
-                    bIn = yIn + 2.03211f * uIn;
-                }
+    private BufferedImage filterImage(ImagePreprocessor.LinearRaster input) {
+        return ImagePreprocessor.filter(input, createFilter());
+    }
 
-                int rgbOut = (ColorUtils.RtosR(rIn) << 16) | (ColorUtils.RtosR(gIn) << 8) | (ColorUtils.RtosR(bIn));
-                output.setRGB(x, y, rgbOut);
-            }
-        }
-        return output;
+    private ImagePreprocessor.LinearRaster scaleImage(BufferedImage img) {
+        return createPreprocessor(img).scale();
+    }
+
+    private ImagePreprocessor.Filter createFilter() {
+        return new ImagePreprocessor.Filter(properties.get(BRIGHTNESS), properties.get(CONTRAST), properties.get(SATURATION));
+    }
+
+    private ImagePreprocessor createPreprocessor(BufferedImage img) {
+        return createPreprocessor(img.getWidth(), img.getHeight(), img);
+    }
+
+    private ImagePreprocessor createPreprocessor(int imgWidth, int imgHeight, BufferedImage img) {
+        int cropLeft = properties.get(CROP_LEFT);
+        int cropRight = properties.get(CROP_RIGHT);
+        int cropTop = properties.get(CROP_TOP);
+        int cropBottom = properties.get(CROP_BOTTOM);
+        int croppedWidth = Math.max(1, imgWidth - cropLeft - cropRight);
+        int croppedHeight = Math.max(1, imgHeight - cropTop - cropBottom);
+
+        int width = properties.get(VISUAL_DATA).getCharWidth() * properties.get(CHARS_WIDTH);
+        int height = properties.get(VISUAL_DATA).getCharHeight() * properties.get(CHARS_HEIGHT);
+        int[] rect = ImageUtils.calculateDrawRect(croppedWidth, croppedHeight, width, height,
+                properties.get(ASPECT_RATIO_PRESERVATION_MODE), properties.get(PLATFORM).isDoubleWide(properties.get(VISUAL_DATA)));
+
+        return new ImagePreprocessor(imgWidth, imgHeight, img, cropLeft, cropTop, croppedWidth, croppedHeight, width, height, rect[0], rect[1], rect[2], rect[3]);
+    }
+
+    // scales and filters an image without touching the cached state, so it can be called from multiple threads
+    public BufferedImage prepareImage(BufferedImage input) {
+        return createPreprocessor(input).process(createFilter());
+    }
+
+    // prepareImage(), a strip at a time, for a reader with its input already set
+    public ImageStripReader createStripReader(ImageReader reader) throws IOException {
+        return new ImageStripReader(reader, createPreprocessor(reader.getWidth(0), reader.getHeight(0), null), createFilter());
     }
 
     public void updateImage(BufferedImage input) {
@@ -146,33 +206,16 @@ public class ZimaConversionProfile {
         }
 
         if (this.inputImage == null || this.scaledImage == null || this.inputImage != input) {
+            if (this.inputImage != input) {
+                this.inputImageGeneration++;
+            }
             this.inputImage = input;
             localHolder.affect(SCALED_IMAGE);
             localHolder.affect(FILTERED_IMAGE);
         }
 
         if (localHolder.isAffected(SCALED_IMAGE)) {
-            BufferedImage img = this.inputImage;
-            int cropLeft = properties.get(CROP_LEFT);
-            int cropRight = properties.get(CROP_RIGHT);
-            int cropTop = properties.get(CROP_TOP);
-            int cropBottom = properties.get(CROP_BOTTOM);
-
-            if (cropTop != 0 || cropLeft != 0 || cropRight != 0 || cropBottom != 0) {
-                int croppedWidth = Math.max(1, img.getWidth() - cropLeft - cropRight);
-                int croppedHeight = Math.max(1, img.getHeight() - cropTop - cropBottom);
-
-                BufferedImage croppedImage = new BufferedImage(croppedWidth, croppedHeight, BufferedImage.TYPE_INT_RGB);
-                Graphics2D gfx = (Graphics2D) croppedImage.getGraphics();
-                gfx.drawImage(img, -cropLeft, -cropTop, null);
-                gfx.dispose();
-                img = croppedImage;
-            }
-
-            int width = properties.get(VISUAL_DATA).getCharWidth() * properties.get(CHARS_WIDTH);
-            int height = properties.get(VISUAL_DATA).getCharHeight() * properties.get(CHARS_HEIGHT);
-
-            this.scaledImage = ImageUtils.scale(img, width, height, properties.get(ASPECT_RATIO_PRESERVATION_MODE), properties.get(PLATFORM).isDoubleWide(properties.get(VISUAL_DATA)), Color.BLACK);
+            this.scaledImage = scaleImage(this.inputImage);
             localHolder.affect(FILTERED_IMAGE);
         }
 
@@ -181,29 +224,157 @@ public class ZimaConversionProfile {
         }
     }
 
-    public Pair<ImageConverter.Result, BufferedImage> convert(BufferedImage input, ProgressCallback progressCallback, boolean fast) {
+    public void setExecutor(ConversionExecutor executor) {
+        this.executor = executor;
+        // calculators and converters keep the executor they were created with
+        this.mseCalculator = null;
+        this.converter = null;
+    }
+
+    public Pair<ImageConverter.Result, BufferedImage> convert(BufferedImage input, ConversionProgress progress, boolean fast) {
+        // the image filters run on the executor too, so nothing of the conversion competes outside of it
+        return executor.call(() -> convertOnExecutor(input, progress, fast));
+    }
+
+    private Pair<ImageConverter.Result, BufferedImage> convertOnExecutor(BufferedImage input, ConversionProgress progress, boolean fast) {
         updateImage(input);
 
         PropertyHolder localHolder = this.properties.clone(TEXT_VISUAL_RENDERER, MSE_CALCULATOR, IMAGE_CONVERTER);
 
         if (localHolder.isAffected(TEXT_VISUAL_RENDERER) || this.renderer == null) {
-            this.renderer = new TextVisualRenderer(properties.get(VISUAL_DATA), properties.get(PLATFORM).isDoubleWide());
+            this.renderer = createRenderer();
         }
         if (localHolder.isAffected(MSE_CALCULATOR) || this.mseCalculator == null) {
-            switch (properties.get(IMAGE_CONVERTER_TYPE)) {
-                case TRIX:
-                    this.mseCalculator = new TrixImageMseCalculator(properties.get(VISUAL_DATA), properties.get(BLINKING_DISABLED), properties.get(TRIX_CONTRAST_REDUCTION), properties.get(TRIX_ACCURATE_APPROXIMATE));
-                    break;
-                case GMSE:
-                    this.mseCalculator = new GmseImageMseCalculator(properties.get(VISUAL_DATA), properties.get(BLINKING_DISABLED), properties.get(TRIX_CONTRAST_REDUCTION), properties.get(TRIX_ACCURATE_APPROXIMATE));
-                    break;
-            }
-           localHolder.affect(IMAGE_CONVERTER);
+            this.mseCalculator = createMseCalculator();
+            localHolder.affect(IMAGE_CONVERTER);
         }
         if (localHolder.isAffected(IMAGE_CONVERTER) || this.converter == null) {
-            this.converter = new ImageConverter(properties.get(VISUAL_DATA), properties.get(PLATFORM), mseCalculator);
+            this.converter = createImageConverter(this.mseCalculator);
+        }
+
+        int mode = fast ? 1 : 0;
+        ImageConverter converter = this.converter;
+        BufferedImage image = this.filteredImage;
+        HashCode resultKey = getResultKey(fast);
+        Pair<ImageConverter.Result, BufferedImage> result = resultCache.getIfPresent(resultKey);
+        if (result != null) {
+            progress.start(1);
+            progress.step();
+        } else {
+            // results from another converter (MSE calculator, platform...) can't be reused
+            PreviousConversion previous = this.previousConversions[mode];
+            BitSet dirtyTiles = null;
+            ImageConverter.Result previousResult = null;
+            if (previous != null && previous.getConverter() == converter) {
+                TextVisualData visual = properties.get(VISUAL_DATA);
+                dirtyTiles = ImageUtils.findChangedTiles(previous.getImage(), image, visual.getCharWidth(), visual.getCharHeight());
+                previousResult = previous.getResult();
+            }
+
+            result = convert(converter, this.renderer, image, progress, fast, previousResult, dirtyTiles);
+            resultCache.put(resultKey, result);
+        }
+        this.previousConversions[mode] = new PreviousConversion(converter, image, result.getFirst());
+        return result;
+    }
+
+    // converts a boardless image stripRows tile rows at a time, without holding all of it in memory
+    public void convertStrips(ImageConverter converter, ImageStripReader stripReader, int stripRows,
+                              ConversionProgress progress, ImageConverter.StripConsumer consumer) throws IOException {
+        try {
+            executor.call(() -> {
+                try {
+                    converter.convertBoardlessStrips(stripReader::read,
+                            properties.get(CHARS_WIDTH), properties.get(CHARS_HEIGHT), stripRows,
+                            properties.has(ALLOWED_CHARACTERS) ? properties.get(ALLOWED_CHARACTERS)::contains : null,
+                            properties.has(ALLOWED_COLORS) ? properties.get(ALLOWED_COLORS)::contains : null,
+                            properties.get(COARSE_DITHER_STRENGTH),
+                            properties.get(COARSE_DITHER_MATRIX),
+                            progress, consumer);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private HashCode getResultKey(boolean fast) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putInt(inputImageGeneration);
+        hasher.putBoolean(fast);
+        for (Property<?> property : RESULT_KEY_PROPERTIES) {
+            putValue(hasher, properties.has(property) ? properties.get(property) : null);
+        }
+        return hasher.hash();
+    }
+
+    private static void putValue(Hasher hasher, Object value) {
+        if (value == null) {
+            hasher.putByte((byte) 0);
+        } else if (value instanceof TextVisualData) {
+            TextVisualData visual = (TextVisualData) value;
+            hasher.putByte((byte) 1).putInt(visual.getCharWidth()).putInt(visual.getCharHeight()).putBytes(visual.getCharData());
+            for (int color : visual.getPalette()) {
+                hasher.putInt(color);
+            }
+        } else if (value instanceof ImageConverterRuleset) {
+            List<ElementRule> rules = ((ImageConverterRuleset) value).getRules();
+            hasher.putByte((byte) 2).putInt(rules.size());
+            for (ElementRule rule : rules) {
+                hasher.putInt(rule.getElement().getId()).putInt(rule.getStrategy().ordinal()).putInt(rule.getChr()).putInt(rule.getColor());
+            }
+        } else if (value instanceof Collection) {
+            // sets may iterate in different orders for equal contents
+            Collection<?> values = value instanceof Set ? new TreeSet<>((Set<?>) value) : (Collection<?>) value;
+            hasher.putByte((byte) 3).putInt(values.size());
+            for (Object o : values) {
+                putValue(hasher, o);
+            }
+        } else if (value instanceof Number || value instanceof Boolean || value instanceof String || value instanceof Enum) {
+            hasher.putByte((byte) 4).putUnencodedChars(value.getClass().getName()).putUnencodedChars(value.toString());
+        } else {
+            // shared instances without value semantics, such as platforms
+            hasher.putByte((byte) 5).putInt(System.identityHashCode(value));
         }
-        return converter.convert(this.filteredImage,
+    }
+
+    public TextVisualRenderer createRenderer() {
+        return new TextVisualRenderer(properties.get(VISUAL_DATA), properties.get(PLATFORM).isDoubleWide());
+    }
+
+    public ImageMseCalculator createMseCalculator() {
+        switch (properties.get(IMAGE_CONVERTER_TYPE)) {
+            case GMSE:
+                return new GmseImageMseCalculator(properties.get(VISUAL_DATA), properties.get(BLINKING_DISABLED), properties.get(TRIX_CONTRAST_REDUCTION), properties.get(TRIX_ACCURATE_APPROXIMATE), executor);
+            case COLOR_PAIR:
+                return new ColorPairImageMseCalculator(properties.get(VISUAL_DATA), properties.get(BLINKING_DISABLED), properties.get(TRIX_CONTRAST_REDUCTION));
+            case TRIX:
+            default:
+                return new TrixImageMseCalculator(properties.get(VISUAL_DATA), properties.get(BLINKING_DISABLED), properties.get(TRIX_CONTRAST_REDUCTION), properties.get(TRIX_ACCURATE_APPROXIMATE));
+        }
+    }
+
+    public ImageConverter createImageConverter(ImageMseCalculator mseCalculator) {
+        return new ImageConverter(properties.get(VISUAL_DATA), properties.get(PLATFORM), mseCalculator, properties.get(TRIX_PRUNE_CANDIDATES),
+                properties.get(STAT_ALLOCATION_MODE), properties.get(RATE_DISTORTION_LAMBDA), executor);
+    }
+
+    // compares a result, rendered as previewed but at the size of the prepared image it was converted from, against that image
+    public ImageMetrics.Report measure(BufferedImage image, ImageConverter.Result result) {
+        TextVisualData visual = properties.get(VISUAL_DATA);
+        boolean blinkingDisabled = properties.get(BLINKING_DISABLED) || !properties.get(PLATFORM).isSupportsBlinking();
+        BufferedImage rendered = ImageConverter.renderPreview(new TextVisualRenderer(visual, false), result, blinkingDisabled);
+        return ImageMetrics.compare(image, rendered, visual.getCharWidth(), visual.getCharHeight());
+    }
+
+    // converts an already prepared image with the given converter; the converter and renderer may be shared between threads
+    public Pair<ImageConverter.Result, BufferedImage> convert(ImageConverter converter, TextVisualRenderer renderer, BufferedImage image,
+                                                            ConversionProgress progress, boolean fast,
+                                                            ImageConverter.Result previousResult, BitSet dirtyTiles) {
+        return converter.convert(image,
                 properties.get((fast && properties.has(FAST_RULESET)) ? FAST_RULESET : RULESET),
                 properties.get(BOARD_X), properties.get(BOARD_Y),
                 properties.get(CHARS_WIDTH), properties.get(CHARS_HEIGHT),
@@ -216,6 +387,7 @@ public class ZimaConversionProfile {
                 properties.has(ALLOWED_CHARACTERS) ? properties.get(ALLOWED_CHARACTERS)::contains : null,
                 properties.has(ALLOWED_COLORS) ? properties.get(ALLOWED_COLORS)::contains : null,
                 properties.get(STAT_CYCLE),
-                this.renderer, progressCallback, fast);
+                renderer, progress, fast,
+                previousResult, dirtyTiles);
     }
 }
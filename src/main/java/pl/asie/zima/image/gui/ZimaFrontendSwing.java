@@ -60,7 +60,7 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 	private final JMenu fileMenu, editMenu, profileMenu, toolsMenu;
 	private final JMenuItem openItem, saveBrdItem, saveMzmItem, savePngItem, closeItem;
 	private final JMenuItem copyItem ,pasteItem;
-	private final JMenuItem profileLoadItem, profileSaveItem;
+	private final JMenuItem profileLoadItem, profileSaveItem, profileTuneItem;
 	private final JMenuItem toolWorldCheckItem, toolZxtEditItem;
 	private final JTabbedPane optionsPane;
 	private final JPanel optionsBoardPanel;
@@ -92,6 +92,7 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 	private JLabel charRatioLabel;
 	private JSpinner maxStatCountEdit;
 	private JSpinner maxBoardSizeEdit;
+	private JComboBox<StatAllocationMode> statAllocationModeEdit;
 	private JCheckBox blinkingDisabledEdit;
 	private JComboBox<String> platformEdit;
 	private final List<Pair<String, ZimaPlatform>> platforms = List.of(
@@ -116,6 +117,8 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 	private JComboBox<ImageConverterType> converterTypeEdit;
 	private JSlider contrastReductionEdit;
 	private JButton contrastReductionReset;
+	private JSlider rateDistortionLambdaEdit;
+	private JButton rateDistortionLambdaReset;
 	private JSlider accurateApproximateEdit;
 	private JButton accurateApproximateReset;
 	private JSlider coarseDitherStrengthEdit;
@@ -139,8 +142,10 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 
 	// "Advanced" tab
 	private JCheckBox fastPreviewEdit;
+	private JCheckBox showErrorMapEdit;
 	private JCheckBox allowFacesEdit;
 	private JSpinner statCycleEdit;
+	private JSpinner pruneCandidatesEdit;
 
 	private final byte[] defaultCharset;
 	private final int[] defaultPalette;
@@ -168,6 +173,11 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 
 		this.profile = new ZimaConversionProfile();
 		this.profileFast = new ZimaConversionProfile();
+		// separate pools, so that the fast preview never queues behind the full render; the full render also leaves
+		// one core to the preview and yields to it in scheduling
+		int cores = Runtime.getRuntime().availableProcessors();
+		this.profile.setExecutor(new ConversionExecutor("zima-full", Integer.getInteger("zima.fullThreads", Math.max(1, cores - 1)), Thread.NORM_PRIORITY - 2));
+		this.profileFast.setExecutor(new ConversionExecutor("zima-fast", Integer.getInteger("zima.fastThreads", cores), Thread.NORM_PRIORITY));
 		this.profile.getProperties().addGlobalChangeListener((k, v) -> rerender());
 		// TODO: move both
 		this.profile.getProperties().set(ZimaConversionProfile.PLATFORM, ZimaPlatform.ZZT);
@@ -210,6 +220,7 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 		this.menuBar.add(this.profileMenu = new JMenu("Profile"));
 		this.profileMenu.add(this.profileLoadItem = new JMenuItem("Load"));
 		this.profileMenu.add(this.profileSaveItem = new JMenuItem("Save"));
+		this.profileMenu.add(this.profileTuneItem = new JMenuItem("Auto-tune"));
 
 		// TODO: This should be in a separate menu?
 		this.menuBar.add(this.toolsMenu = new JMenu("Tools"));
@@ -281,11 +292,13 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 				if (newPlatform.getZztEngineDefinition() != null) {
 					this.maxBoardSizeEdit.setEnabled(true);
 					this.maxStatCountEdit.setEnabled(true);
+					this.statAllocationModeEdit.setEnabled(true);
 					this.maxStatCountEdit.setValue(newPlatform.getZztEngineDefinition().getMaxStatCount());
 					this.statCycleEdit.setEnabled(true);
 				} else {
 					this.maxBoardSizeEdit.setEnabled(false);
 					this.maxStatCountEdit.setEnabled(false);
+					this.statAllocationModeEdit.setEnabled(false);
 					this.statCycleEdit.setEnabled(false);
 				}
 			});
@@ -328,6 +341,9 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 			bindPropertyInt(this.profile.getProperties(), ZimaConversionProfile.MAX_BOARD_SIZE, this.maxBoardSizeEdit);
 			this.profile.getProperties().addChangeListener(ZimaConversionProfile.PLATFORM, (k, v) -> this.maxBoardSizeEdit.setModel(boardSizeModel(((Number) this.maxBoardSizeEdit.getValue()).intValue())));
 
+			appendTabRow(this.optionsBoardPanel, gbc, "Stat allocation", this.statAllocationModeEdit = createEnumComboBox(StatAllocationMode.class));
+			bindPropertyEnum(this.profile.getProperties(), ZimaConversionProfile.STAT_ALLOCATION_MODE, this.statAllocationModeEdit);
+
 			appendTabRow(this.optionsBoardPanel, gbc, "Conversion algorithm", this.converterTypeEdit = createEnumComboBox(ImageConverterType.class));
 			bindPropertyEnum(this.profile.getProperties(), ZimaConversionProfile.IMAGE_CONVERTER_TYPE, this.converterTypeEdit);
 
@@ -499,6 +515,9 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 			this.asyncRenderer.setUseFastPreview(this.fastPreviewEdit.isSelected());
 			this.fastPreviewEdit.addItemListener((e) -> { this.asyncRenderer.setUseFastPreview(this.fastPreviewEdit.isSelected()); rerender(); });
 
+			appendTabRow(this.optionsAdvancedPanel, gbc, "Show error map", this.showErrorMapEdit = new JCheckBox());
+			this.showErrorMapEdit.addItemListener((e) -> updateCanvas());
+
 /*			this.profile.setMseCalculatorFunction(this.mseConverterOptions.get(0).getSecond());
 			appendTabRow(this.optionsAdvancedPanel, gbc, "Error calculator", this.mseConverterEdit = new JComboBox<>(this.mseConverterOptions.stream().map(Pair::getFirst).toArray(String[]::new)));
 			this.mseConverterEdit.setSelectedIndex(0);
@@ -510,6 +529,15 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 			bindPropertyFloat(this.profile.getProperties(), ZimaConversionProfile.TRIX_CONTRAST_REDUCTION, this.contrastReductionEdit, (f) -> (int) Math.sqrt(f * 10000000.0f), (i) -> (i * i) / 10000000.0f);
 			this.contrastReductionReset.addActionListener((e) -> { this.profile.getProperties().reset(ZimaConversionProfile.TRIX_CONTRAST_REDUCTION); });
 
+			appendTabRow(this.optionsAdvancedPanel, gbc, "Board size/quality tradeoff",
+					this.rateDistortionLambdaEdit = new JSlider(JSlider.HORIZONTAL, 0, 1000, 0),
+					this.rateDistortionLambdaReset = new JButton("Reset"));
+			bindPropertyFloat(this.profile.getProperties(), ZimaConversionProfile.RATE_DISTORTION_LAMBDA, this.rateDistortionLambdaEdit, (f) -> (int) Math.sqrt(f * 10000000.0f), (i) -> (i * i) / 10000000.0f);
+			this.rateDistortionLambdaReset.addActionListener((e) -> { this.profile.getProperties().reset(ZimaConversionProfile.RATE_DISTORTION_LAMBDA); });
+
+			appendTabRow(this.optionsAdvancedPanel, gbc, "Candidate pruning (0 = off)", this.pruneCandidatesEdit = new JSpinner(new SpinnerNumberModel(0, 0, 4096, 8)));
+			bindPropertyInt(this.profile.getProperties(), ZimaConversionProfile.TRIX_PRUNE_CANDIDATES, this.pruneCandidatesEdit);
+
 			appendTabRow(this.optionsAdvancedPanel, gbc, "Statful element cycles", this.statCycleEdit = new JSpinner(new SpinnerNumberModel(0, 0, 420, 1)));
 			bindPropertyInt(this.profile.getProperties(), ZimaConversionProfile.STAT_CYCLE, this.statCycleEdit);
 			this.profile.getProperties().addChangeListener(ZimaConversionProfile.PLATFORM, (k, v) -> this.statCycleEdit.setModel(new SpinnerNumberModel(((Number) this.statCycleEdit.getValue()).intValue(), 0, 420, 1)));
@@ -536,6 +564,7 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 		this.pasteItem.addActionListener(this::onPaste);
 		this.profileLoadItem.addActionListener(this::onLoadSettings);
 		this.profileSaveItem.addActionListener(this::onSaveSettings);
+		this.profileTuneItem.addActionListener(this::onTuneSettings);
 
 		this.openItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_O, InputEvent.CTRL_DOWN_MASK));
 		this.saveBrdItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, InputEvent.CTRL_DOWN_MASK));
@@ -707,6 +736,13 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 			this.previewCanvas.setAllowScaling(true);
 			this.previewCanvas.setDoubleWide(platform.isDoubleWide(this.visual));
 			this.previewCanvas.setImage(this.profile.getFilteredImage());
+		} else if (this.showErrorMapEdit.isSelected() && this.asyncRenderer.getOutputErrorMap() != null) {
+			// the error map is at the size of the filtered image, like the input image
+			ZimaPlatform platform = this.profile.getProperties().get(ZimaConversionProfile.PLATFORM);
+			this.previewCanvas.setAllowScaling(true);
+			this.previewCanvas.setDoubleWide(platform.isDoubleWide(this.visual));
+			this.previewCanvas.setImage(this.asyncRenderer.getOutputErrorMap());
+			this.asyncRenderer.popQueue();
 		} else {
 			this.previewCanvas.setAllowScaling(false);
 			this.previewCanvas.setDoubleWide(false);
@@ -763,6 +799,39 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 		}
 	}
 
+	public void onTuneSettings(ActionEvent event) {
+		BufferedImage input = this.inputImage;
+		if (input == null) {
+			return;
+		}
+
+		// tries the converter settings on the current image in the background, then applies the best ones
+		this.profileTuneItem.setEnabled(false);
+		// the settings can be edited while the tuner runs, so it works on a snapshot taken here, on the event thread
+		ZimaConversionProfile snapshot = this.profile.copy();
+		ZimaProfileTuner tuner = new ZimaProfileTuner(snapshot);
+		Thread thread = new Thread(() -> {
+			try {
+				List<ZimaProfileTuner.TrialResult> results = tuner.run(input, ZimaProfileTuner.createDefaultGrid(),
+						snapshot.getExecutor().getThreads(), new ConversionProgress());
+				SwingUtilities.invokeLater(() -> {
+					this.profileTuneItem.setEnabled(true);
+					this.asyncRenderer.clearPreviousConversions();
+					results.get(0).getTrial().applyTo(this.profile.getProperties());
+					new ZimaTextWindow(this.window, "Auto-tune results", ZimaProfileTuner.formatReport(results));
+				});
+			} catch (Exception e) {
+				SwingUtilities.invokeLater(() -> {
+					this.profileTuneItem.setEnabled(true);
+					JOptionPane.showMessageDialog(this.window, "Error tuning profile: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+				});
+				e.printStackTrace();
+			}
+		}, "zima-tune");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
 	public void onLoadDefaultCharset(ActionEvent event) {
 		this.charset = null;
 		updateVisual();
@@ -958,7 +1027,8 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 		File file = showSaveDialog("outputBrd", new FileNameExtensionFilter("ZZT board file", "brd"));
 		if (file != null) {
 			try {
-				Board board = this.asyncRenderer.getOutputBoard();
+				// the output board may be shared with later conversions through the result cache, so only a copy is named
+				Board board = this.asyncRenderer.getOutputBoard().copy();
 
 				try (FileOutputStream fos = new FileOutputStream(file); ZOutputStream zos = new ZOutputStream(fos, board.getEngineDefinition())) {
 					String basename = file.getName();
@@ -967,7 +1037,7 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 						basename = basename.substring(0, extIndex);
 					}
 					board.setName(basename.replaceAll("[^\\x20-\\x7E]", "?"));
-					this.asyncRenderer.getOutputBoard().writeZ(zos);
+					board.writeZ(zos);
 				}
 			} catch (Exception e) {
 				JOptionPane.showMessageDialog(this.window, "Error saving file: " + e.getMessage());
@@ -1034,6 +1104,7 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 		ZimaProfileSettings settings = new ZimaProfileSettings();
 
 		settings.setMaxStatCount(this.profile.getProperties().get(ZimaConversionProfile.MAX_STAT_COUNT));
+		settings.setStatAllocationMode(this.profile.getProperties().get(ZimaConversionProfile.STAT_ALLOCATION_MODE));
 		settings.setColorsBlink(!this.profile.getProperties().get(ZimaConversionProfile.BLINKING_DISABLED));
 
 		settings.setAllowedCharacters(IntStream.range(0, 256).filter(this.characterSelector::isCharAllowed).toArray());
@@ -1050,6 +1121,9 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 
 		settings.setContrastReduction(this.profile.getProperties().get(ZimaConversionProfile.TRIX_CONTRAST_REDUCTION));
 		settings.setAccurateApproximate(this.profile.getProperties().get(ZimaConversionProfile.TRIX_ACCURATE_APPROXIMATE));
+		settings.setPruneCandidates(this.profile.getProperties().get(ZimaConversionProfile.TRIX_PRUNE_CANDIDATES));
+		settings.setRateDistortionLambda(this.profile.getProperties().get(ZimaConversionProfile.RATE_DISTORTION_LAMBDA));
+		settings.setCoarseDitherStrength(this.profile.getProperties().get(ZimaConversionProfile.COARSE_DITHER_STRENGTH));
 		settings.setImageConverterType(this.profile.getProperties().get(ZimaConversionProfile.IMAGE_CONVERTER_TYPE));
 
 		settings.setAspectRatioPreservationMode(this.profile.getProperties().get(ZimaConversionProfile.ASPECT_RATIO_PRESERVATION_MODE));
@@ -1139,6 +1213,22 @@ public class ZimaFrontendSwing extends BaseFrontendSwing {
 			this.profile.getProperties().set(ZimaConversionProfile.TRIX_ACCURATE_APPROXIMATE, settings.getAccurateApproximate());
 		}
 
+		if (settings.getPruneCandidates() != null) {
+			this.profile.getProperties().set(ZimaConversionProfile.TRIX_PRUNE_CANDIDATES, settings.getPruneCandidates());
+		}
+
+		if (settings.getRateDistortionLambda() != null) {
+			this.profile.getProperties().set(ZimaConversionProfile.RATE_DISTORTION_LAMBDA, settings.getRateDistortionLambda());
+		}
+
+		if (settings.getCoarseDitherStrength() != null) {
+			this.profile.getProperties().set(ZimaConversionProfile.COARSE_DITHER_STRENGTH, settings.getCoarseDitherStrength());
+		}
+
+		if (settings.getStatAllocationMode() != null) {
+			this.profile.getProperties().set(ZimaConversionProfile.STAT_ALLOCATION_MODE, settings.getStatAllocationMode());
+		}
+
 		if (settings.getAspectRatioPreservationMode() != null) {
 			this.profile.getProperties().set(ZimaConversionProfile.ASPECT_RATIO_PRESERVATION_MODE, settings.getAspectRatioPreservationMode());
 		}
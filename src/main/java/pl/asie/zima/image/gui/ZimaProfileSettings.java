@@ -21,6 +21,7 @@ package pl.asie.zima.image.gui;
 import lombok.Data;
 import pl.asie.zima.image.ElementRule;
 import pl.asie.zima.image.ImageConverterType;
+import pl.asie.zima.image.StatAllocationMode;
 import pl.asie.zima.util.AspectRatioPreservationMode;
 
 import java.util.List;
@@ -37,9 +38,13 @@ public class ZimaProfileSettings {
     private int[] customPalette;
 
     private Integer maxStatCount;
+    private StatAllocationMode statAllocationMode;
     private Boolean colorsBlink;
     private Float contrastReduction;
     private Float accurateApproximate;
+    private Integer pruneCandidates;
+    private Float rateDistortionLambda;
+    private Float coarseDitherStrength;
 
     private AspectRatioPreservationMode aspectRatioPreservationMode;
     private ImageConverterType imageConverterType;
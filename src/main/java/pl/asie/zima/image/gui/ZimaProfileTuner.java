@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image.gui;
+
+import lombok.Data;
+import pl.asie.zima.image.ConversionExecutor;
+import pl.asie.zima.image.ConversionProgress;
+import pl.asie.zima.image.ImageConverter;
+import pl.asie.zima.image.ImageConverterType;
+import pl.asie.zima.util.Pair;
+import pl.asie.zima.util.PropertyHolder;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Converts an image with each of a list of converter settings, ranking them by the SSIM of the converted tiles,
+// rendered as ZimaConversionProfile.measure() does, against the filtered input. Trials only differing in dither
+// strength share their MSE calculator and converter (with its candidate table and tile caches); all trials share
+// the filtered image, and the glyph tables are shared through PrecalcCache.
+public class ZimaProfileTuner {
+    @Data
+    public static class Trial {
+        private final ImageConverterType converterType;
+        private final float contrastReduction;
+        private final float accurateApproximate;
+        private final float coarseDitherStrength;
+
+        public void applyTo(PropertyHolder properties) {
+            properties.set(ZimaConversionProfile.IMAGE_CONVERTER_TYPE, converterType);
+            properties.set(ZimaConversionProfile.TRIX_CONTRAST_REDUCTION, contrastReduction);
+            properties.set(ZimaConversionProfile.TRIX_ACCURATE_APPROXIMATE, accurateApproximate);
+            properties.set(ZimaConversionProfile.COARSE_DITHER_STRENGTH, coarseDitherStrength);
+        }
+
+        public void applyTo(ZimaProfileSettings settings) {
+            settings.setImageConverterType(converterType);
+            settings.setContrastReduction(contrastReduction);
+            settings.setAccurateApproximate(accurateApproximate);
+            settings.setCoarseDitherStrength(coarseDitherStrength);
+        }
+
+        private List<Object> getConverterKey() {
+            return List.of(converterType, contrastReduction, accurateApproximate);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s, contrast reduction %.4f, accurate/approximate %.2f, dither %.2f",
+                    converterType.name(), contrastReduction, accurateApproximate, coarseDitherStrength);
+        }
+    }
+
+    @Data
+    public static class TrialResult {
+        private final Trial trial;
+        private final double ssim;
+        private final long timeMs;
+    }
+
+    private final ZimaConversionProfile profile;
+
+    // the profile's settings are read from the tuning threads, so it must not be edited while the tuner runs
+    public ZimaProfileTuner(ZimaConversionProfile profile) {
+        this.profile = profile;
+    }
+
+    // every combination; the color pair converter doesn't use the accurate/approximate setting, so only its first value
+    public static List<Trial> createGrid(Collection<ImageConverterType> converterTypes, float[] contrastReductions,
+                                        float[] accurateApproximates, float[] coarseDitherStrengths) {
+        List<Trial> trials = new ArrayList<>();
+        for (ImageConverterType type : converterTypes) {
+            for (float contrastReduction : contrastReductions) {
+                for (int i = 0; i < (type == ImageConverterType.COLOR_PAIR ? 1 : accurateApproximates.length); i++) {
+                    for (float coarseDitherStrength : coarseDitherStrengths) {
+                        trials.add(new Trial(type, contrastReduction, accurateApproximates[i], coarseDitherStrength));
+                    }
+                }
+            }
+        }
+        return trials;
+    }
+
+    public static List<Trial> createDefaultGrid() {
+        return createGrid(List.of(ImageConverterType.values()),
+                new float[] { 0.0f, ZimaConversionProfile.TRIX_CONTRAST_REDUCTION.getDefaultValue(), 0.01f },
+                new float[] { 0.2f, ZimaConversionProfile.TRIX_ACCURATE_APPROXIMATE.getDefaultValue(), 0.7f },
+                new float[] { 0.0f, 0.5f });
+    }
+
+    // runs up to parallelTrials conversions at once on the profile's executor; results are ranked best first
+    public List<TrialResult> run(BufferedImage input, List<Trial> trials, int parallelTrials, ConversionProgress progress) {
+        ConversionExecutor executor = profile.getExecutor();
+        BufferedImage image = executor.call(() -> profile.prepareImage(input));
+
+        Map<List<Object>, List<Trial>> groups = new LinkedHashMap<>();
+        for (Trial trial : trials) {
+            groups.computeIfAbsent(trial.getConverterKey(), k -> new ArrayList<>()).add(trial);
+        }
+
+        progress.start(trials.size());
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelTrials, groups.size())));
+        List<TrialResult> results = new ArrayList<>();
+        try {
+            List<Future<List<TrialResult>>> futures = new ArrayList<>();
+            for (List<Trial> group : groups.values()) {
+                futures.add(workers.submit(() -> runGroup(group, image, progress)));
+            }
+            for (Future<List<TrialResult>> future : futures) {
+                results.addAll(future.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            workers.shutdownNow();
+        }
+
+        results.sort(Comparator.comparingDouble(TrialResult::getSsim).reversed());
+        return results;
+    }
+
+    private List<TrialResult> runGroup(List<Trial> group, BufferedImage image, ConversionProgress progress) {
+        ZimaConversionProfile trialProfile = createProfile(group.get(0));
+        ImageConverter converter = trialProfile.createImageConverter(trialProfile.createMseCalculator());
+
+        List<TrialResult> results = new ArrayList<>();
+        for (Trial trial : group) {
+            progress.checkCancelled();
+            trial.applyTo(trialProfile.getProperties());
+
+            long timeStart = System.currentTimeMillis();
+            double ssim = trialProfile.getExecutor().call(() -> {
+                // no preview; a board preview has the rest of the board and the player around the converted tiles
+                Pair<ImageConverter.Result, BufferedImage> result = trialProfile.convert(converter, null, image,
+                        new ConversionProgress(), false, null, null);
+                return trialProfile.measure(image, result.getFirst()).getSsim();
+            });
+            results.add(new TrialResult(trial, ssim, System.currentTimeMillis() - timeStart));
+            progress.step();
+        }
+        return results;
+    }
+
+    // one line per trial, in the order given
+    public static String formatReport(List<TrialResult> results) {
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < results.size(); i++) {
+            TrialResult result = results.get(i);
+            report.append(String.format("%3d. SSIM %.5f [%5d ms] %s%n", i + 1, result.getSsim(), result.getTimeMs(), result.getTrial()));
+        }
+        return report.toString();
+    }
+
+    // a copy of the tuned profile, with the trial's settings
+    public ZimaConversionProfile createProfile(Trial trial) {
+        ZimaConversionProfile trialProfile = profile.copy();
+        trial.applyTo(trialProfile.getProperties());
+        return trialProfile;
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.util;
+
+import lombok.Data;
+
+import java.awt.image.BufferedImage;
+import java.util.stream.IntStream;
+
+// Objective image quality metrics, comparing a converted image against the image it was converted from.
+public final class ImageMetrics {
+	@Data
+	public static final class Report {
+		private final double psnr;
+		private final double ssim;
+		private final int tileWidth, tileHeight;
+		private final int tilesWidth, tilesHeight;
+		// mean squared error of each tile, over all channels, from 0 to 1; [ty * tilesWidth + tx]
+		private final float[] tileErrors;
+
+		public float getMaxTileError() {
+			float max = 0.0f;
+			for (float error : tileErrors) {
+				max = Math.max(max, error);
+			}
+			return max;
+		}
+	}
+
+	// SSIM windows, on luma; overlapping by half
+	private static final int SSIM_WINDOW = 8;
+	private static final int SSIM_STRIDE = 4;
+	private static final double SSIM_C1 = (0.01 * 255) * (0.01 * 255);
+	private static final double SSIM_C2 = (0.03 * 255) * (0.03 * 255);
+
+	private ImageMetrics() {
+
+	}
+
+	public static int[] getRGB(BufferedImage image) {
+		if (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB) {
+			return (int[]) image.getRaster().getDataElements(0, 0, image.getWidth(), image.getHeight(), null);
+		} else {
+			return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+		}
+	}
+
+	// PSNR, SSIM and the error of each tileWidth x tileHeight tile
+	public static Report compare(BufferedImage reference, BufferedImage image, int tileWidth, int tileHeight) {
+		checkSize(reference, image);
+		int width = reference.getWidth();
+		int height = reference.getHeight();
+		int[] a = getRGB(reference);
+		int[] b = getRGB(image);
+
+		int tilesWidth = (width + tileWidth - 1) / tileWidth;
+		int tilesHeight = (height + tileHeight - 1) / tileHeight;
+		double[] sums = squaredErrorSums(a, b, width, height, tileWidth, tileHeight);
+		float[] tileErrors = new float[sums.length];
+		double total = 0.0;
+		for (int i = 0; i < sums.length; i++) {
+			int tx = i % tilesWidth;
+			int ty = i / tilesWidth;
+			int pixels = (Math.min(width, (tx + 1) * tileWidth) - tx * tileWidth) * (Math.min(height, (ty + 1) * tileHeight) - ty * tileHeight);
+			tileErrors[i] = (float) (sums[i] / (pixels * 3 * 255.0 * 255.0));
+			total += sums[i];
+		}
+
+		return new Report(toPsnr(total / ((double) width * height * 3)), ssim(a, b, width, height),
+				tileWidth, tileHeight, tilesWidth, tilesHeight, tileErrors);
+	}
+
+	// in dB; infinite for identical images
+	public static double psnr(BufferedImage a, BufferedImage b) {
+		checkSize(a, b);
+		return psnr(getRGB(a), getRGB(b), a.getWidth(), a.getHeight());
+	}
+
+	public static double psnr(int[] a, int[] b, int width, int height) {
+		double total = 0.0;
+		for (double sum : squaredErrorSums(a, b, width, height, width, height)) {
+			total += sum;
+		}
+		return toPsnr(total / ((double) width * height * 3));
+	}
+
+	private static double toPsnr(double mse) {
+		return mse <= 0.0 ? Double.POSITIVE_INFINITY : 10.0 * Math.log10(255.0 * 255.0 / mse);
+	}
+
+	// sums of squared channel differences, per tile; in parallel over rows of tiles
+	private static double[] squaredErrorSums(int[] a, int[] b, int width, int height, int tileWidth, int tileHeight) {
+		int tilesWidth = (width + tileWidth - 1) / tileWidth;
+		int tilesHeight = (height + tileHeight - 1) / tileHeight;
+		double[] sums = new double[tilesWidth * tilesHeight];
+		IntStream.range(0, tilesHeight).parallel().forEach(ty -> {
+			for (int y = ty * tileHeight; y < Math.min(height, (ty + 1) * tileHeight); y++) {
+				for (int x = 0, i = y * width; x < width; x++, i++) {
+					int ca = a[i];
+					int cb = b[i];
+					int dr = ((ca >> 16) & 0xFF) - ((cb >> 16) & 0xFF);
+					int dg = ((ca >> 8) & 0xFF) - ((cb >> 8) & 0xFF);
+					int db = (ca & 0xFF) - (cb & 0xFF);
+					sums[ty * tilesWidth + x / tileWidth] += dr * dr + dg * dg + db * db;
+				}
+			}
+		});
+		return sums;
+	}
+
+	// each tile's error, relative to the largest, from black through red and yellow to white
+	public static BufferedImage renderErrorMap(Report report, int width, int height) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		float max = report.getMaxTileError();
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			int ty = Math.min(y / report.getTileHeight(), report.getTilesHeight() - 1);
+			for (int x = 0; x < width; x++) {
+				int tx = Math.min(x / report.getTileWidth(), report.getTilesWidth() - 1);
+				float t = max > 0.0f ? report.getTileErrors()[ty * report.getTilesWidth() + tx] / max : 0.0f;
+				row[x] = (heat(t * 3.0f) << 16) | (heat(t * 3.0f - 1.0f) << 8) | heat(t * 3.0f - 2.0f);
+			}
+			image.getRaster().setDataElements(0, y, width, 1, row);
+		}
+		return image;
+	}
+
+	private static int heat(float v) {
+		return Math.round(Math.max(0.0f, Math.min(1.0f, v)) * 255.0f);
+	}
+
+	// mean structural similarity, from -1 to 1 (identical)
+	public static double ssim(BufferedImage a, BufferedImage b) {
+		checkSize(a, b);
+		return ssim(getRGB(a), getRGB(b), a.getWidth(), a.getHeight());
+	}
+
+	public static double ssim(int[] a, int[] b, int width, int height) {
+		float[] lumaA = luma(a);
+		float[] lumaB = luma(b);
+		int windowsX = Math.max(1, (width - SSIM_WINDOW) / SSIM_STRIDE + 1);
+		int windowsY = Math.max(1, (height - SSIM_WINDOW) / SSIM_STRIDE + 1);
+		int windowWidth = Math.min(SSIM_WINDOW, width);
+		int windowHeight = Math.min(SSIM_WINDOW, height);
+
+		double sum = IntStream.range(0, windowsY).parallel().mapToDouble(wy -> {
+			double rowSum = 0.0;
+			for (int wx = 0; wx < windowsX; wx++) {
+				rowSum += ssimWindow(lumaA, lumaB, width, wx * SSIM_STRIDE, wy * SSIM_STRIDE, windowWidth, windowHeight);
+			}
+			return rowSum;
+		}).sum();
+		return sum / ((double) windowsX * windowsY);
+	}
+
+	private static double ssimWindow(float[] a, float[] b, int width, int x, int y, int windowWidth, int windowHeight) {
+		double sumA = 0.0, sumB = 0.0, sumAA = 0.0, sumBB = 0.0, sumAB = 0.0;
+		for (int iy = 0; iy < windowHeight; iy++) {
+			int i = (y + iy) * width + x;
+			for (int ix = 0; ix < windowWidth; ix++, i++) {
+				double va = a[i];
+				double vb = b[i];
+				sumA += va;
+				sumB += vb;
+				sumAA += va * va;
+				sumBB += vb * vb;
+				sumAB += va * vb;
+			}
+		}
+
+		double n = windowWidth * windowHeight;
+		double meanA = sumA / n;
+		double meanB = sumB / n;
+		double varA = sumAA / n - meanA * meanA;
+		double varB = sumBB / n - meanB * meanB;
+		double covariance = sumAB / n - meanA * meanB;
+		return ((2 * meanA * meanB + SSIM_C1) * (2 * covariance + SSIM_C2))
+				/ ((meanA * meanA + meanB * meanB + SSIM_C1) * (varA + varB + SSIM_C2));
+	}
+
+	private static float[] luma(int[] rgb) {
+		float[] luma = new float[rgb.length];
+		for (int i = 0; i < rgb.length; i++) {
+			int c = rgb[i];
+			luma[i] = 0.299f * ((c >> 16) & 0xFF) + 0.587f * ((c >> 8) & 0xFF) + 0.114f * (c & 0xFF);
+		}
+		return luma;
+	}
+
+	private static void checkSize(BufferedImage a, BufferedImage b) {
+		if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+			throw new IllegalArgumentException("Image sizes differ: " + a.getWidth() + "x" + a.getHeight() + " != " + b.getWidth() + "x" + b.getHeight());
+		}
+	}
+}
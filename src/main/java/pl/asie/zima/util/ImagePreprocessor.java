@@ -0,0 +1,337 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.util;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+// Crops, scales and filters images on int[] rows, in parallel over blocks of output rows. The crop is only an offset
+// into the source; scaling averages source areas in linear light when shrinking, and interpolates linearly when
+// enlarging. Anything outside of the scaled area is black.
+public final class ImagePreprocessor {
+	private static final int ROWS_PER_TASK = 8;
+
+	// linear-light RGB, interleaved, as left by scale()
+	@Getter
+	@RequiredArgsConstructor
+	public static final class LinearRaster {
+		private final int width;
+		private final int height;
+		private final float[] data;
+	}
+
+	// brightness, contrast and saturation, applied in linear light
+	public static final class Filter {
+		private final float brightness;
+		private final float contrastMul;
+		private final float saturationMul;
+		private final boolean useYuv;
+
+		public Filter(float brightness, float contrast, float saturation) {
+			this.brightness = brightness;
+			this.contrastMul = (1.05f * (1.0f + contrast)) / (1.0f * (1.05f - contrast));
+			this.saturationMul = (saturation + 1.0f);
+			this.useYuv = Math.abs(saturation) > 1e-5f;
+		}
+
+		public int apply(float rIn, float gIn, float bIn) {
+			rIn = rIn + brightness;
+			gIn = gIn + brightness;
+			bIn = bIn + brightness;
+
+			rIn = (rIn - 0.5f) * contrastMul + 0.5f;
+			gIn = (gIn - 0.5f) * contrastMul + 0.5f;
+			bIn = (bIn - 0.5f) * contrastMul + 0.5f;
+
+			if (useYuv) {
+				float yIn = 0.299f * rIn + 0.587f * gIn + 0.114f * bIn;
+				float uIn = -0.14713f * rIn + -0.28886f * gIn + 0.436f * bIn;
+				float vIn = 0.615f * rIn + -0.51499f * gIn + -0.10001f * bIn;
+
+				uIn *= saturationMul;
+				vIn *= saturationMul;
+
+				rIn = yIn + 1.13983f * vIn;
+				gIn = yIn + -0.39465f * uIn + -0.58060f * vIn;
+				bIn = yIn + 2.03211f * uIn;
+			}
+
+			return (ColorUtils.RtosR(rIn) << 16) | (ColorUtils.RtosR(gIn) << 8) | (ColorUtils.RtosR(bIn));
+		}
+	}
+
+	// for each output pixel along an axis, the source pixels it is made of and their weights; [pixel * taps + tap]
+	private static final class Contributions {
+		private final int count;
+		private final int taps;
+		private final int[] indices;
+		private final float[] weights;
+
+		private Contributions(int srcLength, int dstLength) {
+			this.count = Math.max(0, dstLength);
+			double scale = (double) srcLength / Math.max(1, dstLength);
+			this.taps = scale > 1.0 ? (int) Math.ceil(scale) + 1 : 2;
+			this.indices = new int[count * taps];
+			this.weights = new float[count * taps];
+
+			for (int i = 0; i < count; i++) {
+				int offset = i * taps;
+				if (scale > 1.0) {
+					// area average
+					double from = i * scale;
+					double to = from + scale;
+					int start = (int) Math.floor(from);
+					for (int t = 0; t < taps; t++) {
+						int s = start + t;
+						double coverage = Math.min(to, s + 1) - Math.max(from, s);
+						indices[offset + t] = Math.min(s, srcLength - 1);
+						weights[offset + t] = (coverage > 0.0 && s < srcLength) ? (float) (coverage / scale) : 0.0f;
+					}
+				} else {
+					// linear interpolation between source pixel centers
+					double center = (i + 0.5) * scale - 0.5;
+					int start = (int) Math.floor(center);
+					float frac = (float) (center - start);
+					if (start < 0) {
+						start = 0;
+						frac = 0.0f;
+					} else if (start >= srcLength - 1) {
+						start = srcLength - 1;
+						frac = 0.0f;
+					}
+					indices[offset] = start;
+					indices[offset + 1] = Math.min(start + 1, srcLength - 1);
+					weights[offset] = 1.0f - frac;
+					weights[offset + 1] = frac;
+				}
+			}
+		}
+	}
+
+	// per-task buffers; keeps the last source row read, as neighbouring output rows share their edge rows
+	// source holds the input pixels from (sourceX, sourceY) on - all of them, or only a strip
+	private final class RowReader {
+		private final BufferedImage source;
+		private final int sourceX, sourceY;
+		private final boolean hasAlpha;
+		private final int[] pixels = new int[cropWidth];
+		private final float[] linear = new float[cropWidth * 3];
+		private int lastRow = Integer.MIN_VALUE;
+
+		private RowReader(BufferedImage source, int sourceX, int sourceY) {
+			this.source = source;
+			this.sourceX = sourceX;
+			this.sourceY = sourceY;
+			this.hasAlpha = source != null && source.getColorModel().hasAlpha();
+		}
+
+		private float[] read(int sy) {
+			if (sy == lastRow) {
+				return linear;
+			}
+			lastRow = sy;
+
+			Arrays.fill(linear, 0.0f);
+			int y = cropTop + sy;
+			int xFrom = Math.max(0, cropLeft);
+			int xTo = Math.min(inputWidth, cropLeft + cropWidth);
+			if (source == null || y < 0 || y >= inputHeight || xFrom >= xTo) {
+				return linear;
+			}
+
+			int count = xTo - xFrom;
+			if (source.getType() == BufferedImage.TYPE_INT_RGB || source.getType() == BufferedImage.TYPE_INT_ARGB) {
+				source.getRaster().getDataElements(xFrom - sourceX, y - sourceY, count, 1, pixels);
+			} else {
+				source.getRGB(xFrom - sourceX, y - sourceY, count, 1, pixels, 0, count);
+			}
+
+			int o = (xFrom - cropLeft) * 3;
+			for (int i = 0; i < count; i++, o += 3) {
+				int rgb = pixels[i];
+				linear[o] = ColorUtils.sRtoR((rgb >> 16) & 0xFF);
+				linear[o + 1] = ColorUtils.sRtoR((rgb >> 8) & 0xFF);
+				linear[o + 2] = ColorUtils.sRtoR(rgb & 0xFF);
+			}
+			if (hasAlpha) {
+				// as if drawn over black
+				o = (xFrom - cropLeft) * 3;
+				for (int i = 0; i < count; i++, o += 3) {
+					float alpha = (pixels[i] >>> 24) / 255.0f;
+					linear[o] *= alpha;
+					linear[o + 1] *= alpha;
+					linear[o + 2] *= alpha;
+				}
+			}
+			return linear;
+		}
+	}
+
+	@FunctionalInterface
+	private interface RowConsumer {
+		void accept(int y, float[] linearRow, int[] rgbRow);
+	}
+
+	private final BufferedImage input;
+	private final int inputWidth, inputHeight;
+	private final int cropLeft, cropTop, cropWidth, cropHeight;
+	@Getter
+	private final int width, height;
+	private final int drawX, drawY;
+	private final Contributions columns, rows;
+
+	// the crop rectangle of the input is scaled to the draw rectangle of a width x height output
+	public ImagePreprocessor(BufferedImage input, int cropLeft, int cropTop, int cropWidth, int cropHeight,
+	                         int width, int height, int drawX, int drawY, int drawWidth, int drawHeight) {
+		this(input.getWidth(), input.getHeight(), input, cropLeft, cropTop, cropWidth, cropHeight, width, height, drawX, drawY, drawWidth, drawHeight);
+	}
+
+	// without an input image, only processRows() can be used, with strips of the input read separately
+	public ImagePreprocessor(int inputWidth, int inputHeight, BufferedImage input, int cropLeft, int cropTop, int cropWidth, int cropHeight,
+	                         int width, int height, int drawX, int drawY, int drawWidth, int drawHeight) {
+		this.input = input;
+		this.inputWidth = inputWidth;
+		this.inputHeight = inputHeight;
+		this.cropLeft = cropLeft;
+		this.cropTop = cropTop;
+		this.cropWidth = Math.max(1, cropWidth);
+		this.cropHeight = Math.max(1, cropHeight);
+		this.width = width;
+		this.height = height;
+		this.drawX = drawX;
+		this.drawY = drawY;
+		this.columns = new Contributions(this.cropWidth, drawWidth);
+		this.rows = new Contributions(this.cropHeight, drawHeight);
+	}
+
+	public LinearRaster scale() {
+		float[] data = new float[width * height * 3];
+		forEachRow(input, 0, 0, 0, height, (y, linearRow, rgbRow) -> System.arraycopy(linearRow, 0, data, y * width * 3, width * 3));
+		return new LinearRaster(width, height, data);
+	}
+
+	// scale() and filter() in one pass, without keeping the scaled image
+	public BufferedImage process(Filter filter) {
+		return processRows(input, 0, 0, 0, height, filter);
+	}
+
+	// process(), for output rows fromY to toY only; source holds the input pixels from (sourceX, sourceY) on,
+	// and must cover getSourceColumns() x getSourceRows(fromY, toY)
+	public BufferedImage processRows(BufferedImage source, int sourceX, int sourceY, int fromY, int toY, Filter filter) {
+		BufferedImage output = new BufferedImage(width, toY - fromY, BufferedImage.TYPE_INT_RGB);
+		forEachRow(source, sourceX, sourceY, fromY, toY, (y, linearRow, rgbRow) -> {
+			filterRow(linearRow, 0, rgbRow, filter);
+			output.getRaster().setDataElements(0, y, width, 1, rgbRow);
+		});
+		return output;
+	}
+
+	// input columns read by any output row, as {from, to}
+	public int[] getSourceColumns() {
+		return new int[] { Math.max(0, cropLeft), Math.max(0, Math.min(inputWidth, cropLeft + cropWidth)) };
+	}
+
+	// input rows read by output rows fromY to toY, as {from, to}; empty if those rows are all border
+	public int[] getSourceRows(int fromY, int toY) {
+		int from = Integer.MAX_VALUE;
+		int to = Integer.MIN_VALUE;
+		for (int dy = Math.max(0, fromY - drawY); dy < Math.min(rows.count, toY - drawY); dy++) {
+			for (int t = 0; t < rows.taps; t++) {
+				if (rows.weights[dy * rows.taps + t] != 0.0f) {
+					int y = cropTop + rows.indices[dy * rows.taps + t];
+					from = Math.min(from, y);
+					to = Math.max(to, y + 1);
+				}
+			}
+		}
+		from = Math.max(0, from);
+		to = Math.min(inputHeight, to);
+		return from < to ? new int[] { from, to } : new int[] { 0, 0 };
+	}
+
+	public static BufferedImage filter(LinearRaster raster, Filter filter) {
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		IntStream.range(0, (height + ROWS_PER_TASK - 1) / ROWS_PER_TASK).parallel().forEach(block -> {
+			int[] rgbRow = new int[width];
+			for (int y = block * ROWS_PER_TASK; y < Math.min(height, (block + 1) * ROWS_PER_TASK); y++) {
+				filterRow(raster.getData(), y * width * 3, rgbRow, filter);
+				output.getRaster().setDataElements(0, y, width, 1, rgbRow);
+			}
+		});
+		return output;
+	}
+
+	private static void filterRow(float[] linear, int offset, int[] rgbRow, Filter filter) {
+		for (int x = 0; x < rgbRow.length; x++, offset += 3) {
+			rgbRow[x] = filter.apply(linear[offset], linear[offset + 1], linear[offset + 2]);
+		}
+	}
+
+	// consumer receives rows relative to fromY
+	private void forEachRow(BufferedImage source, int sourceX, int sourceY, int fromY, int toY, RowConsumer consumer) {
+		IntStream.range(0, (toY - fromY + ROWS_PER_TASK - 1) / ROWS_PER_TASK).parallel().forEach(block -> {
+			RowReader reader = new RowReader(source, sourceX, sourceY);
+			float[] linearRow = new float[width * 3];
+			int[] rgbRow = new int[width];
+			for (int y = fromY + block * ROWS_PER_TASK; y < Math.min(toY, fromY + (block + 1) * ROWS_PER_TASK); y++) {
+				scaleRow(y, reader, linearRow);
+				consumer.accept(y - fromY, linearRow, rgbRow);
+			}
+		});
+	}
+
+	private void scaleRow(int y, RowReader reader, float[] out) {
+		Arrays.fill(out, 0.0f);
+		int dy = y - drawY;
+		if (dy < 0 || dy >= rows.count) {
+			return;
+		}
+
+		int dxFrom = Math.max(0, -drawX);
+		int dxTo = Math.min(columns.count, width - drawX);
+		for (int ty = 0; ty < rows.taps; ty++) {
+			float wy = rows.weights[dy * rows.taps + ty];
+			if (wy == 0.0f) {
+				continue;
+			}
+
+			float[] src = reader.read(rows.indices[dy * rows.taps + ty]);
+			for (int dx = dxFrom; dx < dxTo; dx++) {
+				float r = 0.0f, g = 0.0f, b = 0.0f;
+				for (int t = 0, i = dx * columns.taps; t < columns.taps; t++, i++) {
+					float w = columns.weights[i];
+					int s = columns.indices[i] * 3;
+					r += w * src[s];
+					g += w * src[s + 1];
+					b += w * src[s + 2];
+				}
+				int o = (drawX + dx) * 3;
+				out[o] += wy * r;
+				out[o + 1] += wy * g;
+				out[o + 2] += wy * b;
+			}
+		}
+	}
+}
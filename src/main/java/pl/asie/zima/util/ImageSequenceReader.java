@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.util;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+
+public final class ImageSequenceReader {
+    private static final Set<String> IMAGE_EXTENSIONS = Set.of("png", "gif", "bmp", "jpg", "jpeg");
+
+    @FunctionalInterface
+    public interface FrameConsumer {
+        void accept(int frame, BufferedImage image) throws IOException;
+    }
+
+    private ImageSequenceReader() {
+
+    }
+
+    // Reads a directory of images (in natural order, so that frame2 comes before frame10), the frames of an
+    // animated GIF, or a single image; frames are passed one at a time, so sequences don't have to fit in memory.
+    public static void read(File file, FrameConsumer consumer) throws IOException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles(f -> f.isFile() && IMAGE_EXTENSIONS.contains(getExtension(f)));
+            if (files == null) {
+                throw new IOException("Could not list directory " + file);
+            }
+            Arrays.sort(files, Comparator.comparing(File::getName, ImageSequenceReader::compareNatural));
+            for (int i = 0; i < files.length; i++) {
+                consumer.accept(i, readImage(files[i]));
+            }
+        } else if (getExtension(file).equals("gif")) {
+            readGif(file, consumer);
+        } else {
+            consumer.accept(0, readImage(file));
+        }
+    }
+
+    private static BufferedImage readImage(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+        return image;
+    }
+
+    private static void readGif(File file, FrameConsumer consumer) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, false);
+
+                Node screen = findNode(reader.getStreamMetadata(), "javax_imageio_gif_stream_1.0", "LogicalScreenDescriptor");
+                int width = getIntAttribute(screen, "logicalScreenWidth", reader.getWidth(0));
+                int height = getIntAttribute(screen, "logicalScreenHeight", reader.getHeight(0));
+
+                // frames only cover part of the screen, and are drawn over what the previous frames left behind
+                BufferedImage canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                // getNumImages() can report 0 for files without a trailer, so read until the frames run out
+                for (int i = 0; ; i++) {
+                    BufferedImage frame;
+                    try {
+                        frame = reader.read(i);
+                    } catch (IndexOutOfBoundsException e) {
+                        break;
+                    }
+                    IIOMetadata metadata = reader.getImageMetadata(i);
+                    Node descriptor = findNode(metadata, "javax_imageio_gif_image_1.0", "ImageDescriptor");
+                    Node control = findNode(metadata, "javax_imageio_gif_image_1.0", "GraphicControlExtension");
+                    int left = getIntAttribute(descriptor, "imageLeftPosition", 0);
+                    int top = getIntAttribute(descriptor, "imageTopPosition", 0);
+                    String disposal = getAttribute(control, "disposalMethod", "none");
+
+                    BufferedImage restoreCanvas = null;
+                    if (disposal.equals("restoreToPrevious")) {
+                        restoreCanvas = copy(canvas, BufferedImage.TYPE_INT_ARGB);
+                    }
+
+                    Graphics2D gfx = canvas.createGraphics();
+                    gfx.drawImage(frame, left, top, null);
+                    gfx.dispose();
+
+                    consumer.accept(i, copy(canvas, BufferedImage.TYPE_INT_RGB));
+
+                    if (disposal.equals("restoreToBackgroundColor")) {
+                        gfx = canvas.createGraphics();
+                        gfx.setComposite(AlphaComposite.Clear);
+                        gfx.fillRect(left, top, frame.getWidth(), frame.getHeight());
+                        gfx.dispose();
+                    } else if (restoreCanvas != null) {
+                        canvas = restoreCanvas;
+                    }
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static BufferedImage copy(BufferedImage image, int type) {
+        BufferedImage output = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D gfx = output.createGraphics();
+        gfx.drawImage(image, 0, 0, null);
+        gfx.dispose();
+        return output;
+    }
+
+    private static Node findNode(IIOMetadata metadata, String format, String name) {
+        if (metadata == null) {
+            return null;
+        }
+        Node node = metadata.getAsTree(format).getFirstChild();
+        while (node != null) {
+            if (node.getNodeName().equals(name)) {
+                return node;
+            }
+            node = node.getNextSibling();
+        }
+        return null;
+    }
+
+    private static String getAttribute(Node node, String name, String defaultValue) {
+        if (node == null) {
+            return defaultValue;
+        }
+        NamedNodeMap attributes = node.getAttributes();
+        Node attribute = attributes != null ? attributes.getNamedItem(name) : null;
+        return attribute != null ? attribute.getNodeValue() : defaultValue;
+    }
+
+    private static int getIntAttribute(Node node, String name, int defaultValue) {
+        String value = getAttribute(node, name, null);
+        try {
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static String getExtension(File file) {
+        String name = file.getName();
+        int extIndex = name.lastIndexOf('.');
+        return extIndex >= 0 ? name.substring(extIndex + 1).toLowerCase(Locale.ROOT) : "";
+    }
+
+    // compares digit runs by value, and everything else character by character
+    private static int compareNatural(String a, String b) {
+        int i = 0, j = 0;
+        while (i < a.length() && j < b.length()) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(j);
+            if (Character.isDigit(ca) && Character.isDigit(cb)) {
+                int endA = i;
+                while (endA < a.length() && Character.isDigit(a.charAt(endA))) endA++;
+                int endB = j;
+                while (endB < b.length() && Character.isDigit(b.charAt(endB))) endB++;
+                String numA = a.substring(i, endA).replaceFirst("^0+(?=.)", "");
+                String numB = b.substring(j, endB).replaceFirst("^0+(?=.)", "");
+                int result = numA.length() != numB.length() ? Integer.compare(numA.length(), numB.length()) : numA.compareTo(numB);
+                if (result != 0) {
+                    return result;
+                }
+                i = endA;
+                j = endB;
+            } else {
+                if (ca != cb) {
+                    return Character.compare(ca, cb);
+                }
+                i++;
+                j++;
+            }
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.util;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+// Reads, scales and filters an image in strips of output rows, decoding only the source rows each strip needs,
+// so that images too large to hold in memory can still be converted.
+public class ImageStripReader {
+	private final ImageReader reader;
+	private final ImagePreprocessor preprocessor;
+	private final ImagePreprocessor.Filter filter;
+
+	public ImageStripReader(ImageReader reader, ImagePreprocessor preprocessor, ImagePreprocessor.Filter filter) {
+		this.reader = reader;
+		this.preprocessor = preprocessor;
+		this.filter = filter;
+	}
+
+	public BufferedImage read(int fromY, int toY) throws IOException {
+		int[] rows = preprocessor.getSourceRows(fromY, toY);
+		int[] columns = preprocessor.getSourceColumns();
+		if (rows[0] >= rows[1] || columns[0] >= columns[1]) {
+			return preprocessor.processRows(null, 0, 0, fromY, toY, filter);
+		}
+
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceRegion(new Rectangle(columns[0], rows[0], columns[1] - columns[0], rows[1] - rows[0]));
+		BufferedImage source = reader.read(0, param);
+		return preprocessor.processRows(source, columns[0], rows[0], fromY, toY, filter);
+	}
+}
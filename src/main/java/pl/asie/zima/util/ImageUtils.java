@@ -20,6 +20,8 @@ package pl.asie.zima.util;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.BitSet;
 
 public final class ImageUtils {
     private ImageUtils() {
@@ -27,18 +29,26 @@ public final class ImageUtils {
     }
 
     public static float calculateScaleFactor(BufferedImage image, int width, int height) {
-        float aspectRatioSrc = (float) image.getWidth() / image.getHeight();
+        return calculateScaleFactor(image.getWidth(), image.getHeight(), width, height);
+    }
+
+    public static float calculateScaleFactor(int imageWidth, int imageHeight, int width, int height) {
+        float aspectRatioSrc = (float) imageWidth / imageHeight;
         float aspectRatioDst = (float) width / height;
-        return aspectRatioSrc > aspectRatioDst ? ((float) width / image.getWidth()) : ((float) height / image.getHeight());
+        return aspectRatioSrc > aspectRatioDst ? ((float) width / imageWidth) : ((float) height / imageHeight);
     }
 
     public static int[] calculateSize(BufferedImage inputImage, int width, int height, AspectRatioPreservationMode preserveAspectRatio, int charWidth, int charHeight, boolean doubleWide) {
+        return calculateSize(inputImage.getWidth(), inputImage.getHeight(), width, height, preserveAspectRatio, charWidth, charHeight, doubleWide);
+    }
+
+    public static int[] calculateSize(int imageWidth, int imageHeight, int width, int height, AspectRatioPreservationMode preserveAspectRatio, int charWidth, int charHeight, boolean doubleWide) {
         if (preserveAspectRatio == AspectRatioPreservationMode.IGNORE) {
             return new int[] { width, height };
         } else {
-            float factor = calculateScaleFactor(inputImage, width * (doubleWide ? 2 : 1), height);
-            int drawWidth = Math.round(inputImage.getWidth() * factor);
-            int drawHeight = Math.round(inputImage.getHeight() * factor);
+            float factor = calculateScaleFactor(imageWidth, imageHeight, width * (doubleWide ? 2 : 1), height);
+            int drawWidth = Math.round(imageWidth * factor);
+            int drawHeight = Math.round(imageHeight * factor);
             if (preserveAspectRatio == AspectRatioPreservationMode.SNAP_CHAR) {
                 if (drawWidth != width) {
                     drawWidth = Math.round(drawWidth / (float) charWidth) * charWidth;
@@ -64,17 +74,23 @@ public final class ImageUtils {
     }
 
     public static void drawScaled(BufferedImage inputImage, int width, int height, Graphics2D scaledGraphics, AspectRatioPreservationMode preserveAspectRatio, boolean doubleWide) {
+        int[] rect = calculateDrawRect(inputImage.getWidth(), inputImage.getHeight(), width, height, preserveAspectRatio, doubleWide);
+        scaledGraphics.drawImage(inputImage, rect[0], rect[1], rect[2] + rect[0], rect[3] + rect[1], 0, 0, inputImage.getWidth(), inputImage.getHeight(), null);
+    }
+
+    // returns { x, y, width, height } of the area an image of the given size is scaled into
+    public static int[] calculateDrawRect(int imageWidth, int imageHeight, int width, int height, AspectRatioPreservationMode preserveAspectRatio, boolean doubleWide) {
         // TODO: pass char width/height as argument
         int charWidth = doubleWide ? 16 : 8;
         int charHeight = 14;
-        int[] drawSize = calculateSize(inputImage, width, height, preserveAspectRatio, charWidth, charHeight, doubleWide);
+        int[] drawSize = calculateSize(imageWidth, imageHeight, width, height, preserveAspectRatio, charWidth, charHeight, doubleWide);
         int xOffset = (width - (drawSize[0] / (doubleWide ? 2 : 1))) / 2;
         int yOffset = (height - drawSize[1]) / 2;
         if (preserveAspectRatio == AspectRatioPreservationMode.SNAP_CENTER || preserveAspectRatio == AspectRatioPreservationMode.SNAP_CHAR) {
             xOffset = Math.round(xOffset / (float) charWidth) * charWidth;
             yOffset = Math.round(yOffset / (float) charHeight) * charHeight;
         }
-        scaledGraphics.drawImage(inputImage, xOffset, yOffset, (drawSize[0] / (doubleWide ? 2 : 1)) + xOffset, drawSize[1] + yOffset, 0, 0, inputImage.getWidth(), inputImage.getHeight(), null);
+        return new int[] { xOffset, yOffset, drawSize[0] / (doubleWide ? 2 : 1), drawSize[1] };
     }
 
     public static BufferedImage scale(BufferedImage inputImage, int width, int height, AspectRatioPreservationMode preserveAspectRatio, Color fillColor) {
@@ -104,4 +120,85 @@ public final class ImageUtils {
         g.dispose();
         return image;
 	}
+
+    // Returns the indices (row by row) of tiles which differ between the two images,
+    // or null if they cannot be compared (no previous image, or different sizes).
+    public static BitSet findChangedTiles(BufferedImage previous, BufferedImage current, int tileWidth, int tileHeight) {
+        if (previous == null || current == null || previous.getWidth() != current.getWidth() || previous.getHeight() != current.getHeight()) {
+            return null;
+        }
+
+        int width = current.getWidth() / tileWidth;
+        int height = current.getHeight() / tileHeight;
+        BitSet changed = new BitSet(width * height);
+        if (previous == current) {
+            return changed;
+        }
+
+        int[] previousRow = new int[current.getWidth()];
+        int[] currentRow = new int[current.getWidth()];
+        for (int py = 0; py < height * tileHeight; py++) {
+            previous.getRGB(0, py, previousRow.length, 1, previousRow, 0, previousRow.length);
+            current.getRGB(0, py, currentRow.length, 1, currentRow, 0, currentRow.length);
+            int tileOffset = (py / tileHeight) * width;
+            for (int tx = 0; tx < width; tx++) {
+                int from = tx * tileWidth;
+                if (!changed.get(tileOffset + tx) && !Arrays.equals(previousRow, from, from + tileWidth, currentRow, from, from + tileWidth)) {
+                    changed.set(tileOffset + tx);
+                }
+            }
+        }
+        return changed;
+    }
+
+    // as above, but tiles whose mean squared channel difference (in the 0..1 range) is at most maxError count as unchanged
+    public static BitSet findChangedTiles(BufferedImage previous, BufferedImage current, int tileWidth, int tileHeight, float maxError) {
+        if (maxError <= 0.0f) {
+            return findChangedTiles(previous, current, tileWidth, tileHeight);
+        }
+        if (previous == null || current == null || previous.getWidth() != current.getWidth() || previous.getHeight() != current.getHeight()) {
+            return null;
+        }
+
+        int width = current.getWidth() / tileWidth;
+        int height = current.getHeight() / tileHeight;
+        long[] errors = new long[width * height];
+        int[] previousRow = new int[current.getWidth()];
+        int[] currentRow = new int[current.getWidth()];
+        for (int py = 0; py < height * tileHeight; py++) {
+            previous.getRGB(0, py, previousRow.length, 1, previousRow, 0, previousRow.length);
+            current.getRGB(0, py, currentRow.length, 1, currentRow, 0, currentRow.length);
+            int tileOffset = (py / tileHeight) * width;
+            for (int px = 0; px < width * tileWidth; px++) {
+                int a = previousRow[px];
+                int b = currentRow[px];
+                if (a != b) {
+                    int dr = ((a >> 16) & 0xFF) - ((b >> 16) & 0xFF);
+                    int dg = ((a >> 8) & 0xFF) - ((b >> 8) & 0xFF);
+                    int db = (a & 0xFF) - (b & 0xFF);
+                    errors[tileOffset + px / tileWidth] += dr * dr + dg * dg + db * db;
+                }
+            }
+        }
+
+        BitSet changed = new BitSet(width * height);
+        double scale = 1.0 / (255.0 * 255.0 * 3 * tileWidth * tileHeight);
+        for (int i = 0; i < errors.length; i++) {
+            if (errors[i] * scale > maxError) {
+                changed.set(i);
+            }
+        }
+        return changed;
+    }
+
+    public static void copyTiles(BufferedImage from, BufferedImage to, BitSet tiles, int tileWidth, int tileHeight) {
+        int width = from.getWidth() / tileWidth;
+        int[] pixels = new int[tileWidth * tileHeight];
+        for (int i = tiles.nextSetBit(0); i >= 0; i = tiles.nextSetBit(i + 1)) {
+            int px = (i % width) * tileWidth;
+            int py = (i / width) * tileHeight;
+            from.getRGB(px, py, tileWidth, tileHeight, pixels, 0, tileWidth);
+            to.setRGB(px, py, tileWidth, tileHeight, pixels, 0, tileWidth);
+        }
+    }
 }
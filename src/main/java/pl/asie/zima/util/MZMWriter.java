@@ -27,6 +27,12 @@ public class MZMWriter {
 	private static final byte[] MAGIC = {'M', 'Z', 'M', '3'};
 
 	public static void write(OutputStream s, int width, int height, TextVisualRenderer.ByteGetter charGetter, TextVisualRenderer.ByteGetter colorGetter) throws IOException {
+		writeHeader(s, width, height);
+		writeRows(s, width, height, charGetter, colorGetter);
+	}
+
+	// the header, followed by height rows across any number of writeRows() calls, make up the file
+	public static void writeHeader(OutputStream s, int width, int height) throws IOException {
 		s.write(MAGIC);
 		s.write(width & 0xFF); s.write(width >> 8);
 		s.write(height & 0xFF); s.write(height >> 8);
@@ -36,7 +42,9 @@ public class MZMWriter {
 		s.write(0); // Not a savegame
 		s.write(84); s.write(2); // MegaZeux 2.84 introduced MZM3
 		s.write(0); s.write(0); s.write(0); // reserved
+	}
 
+	public static void writeRows(OutputStream s, int width, int height, TextVisualRenderer.ByteGetter charGetter, TextVisualRenderer.ByteGetter colorGetter) throws IOException {
 		for (int iy = 0; iy < height; iy++) {
 			for (int ix = 0; ix < width; ix++) {
 				s.write(charGetter.get(ix, iy));
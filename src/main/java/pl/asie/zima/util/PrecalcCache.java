@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.util;
+
+import com.google.common.hash.HashCode;
+import lombok.Data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+// Persistent cache of precomputed lookup tables, one file per table. File names hold the table's name, its format
+// version and a hash of every input the table is computed from; callers must bump the version whenever the
+// computation changes. Each file starts with a header holding the table's length and a CRC32 of its contents, which
+// are checked on load. Files are memory-mapped and checked and copied through the mapping, so a table is never held
+// on the heap twice; they still end up in heap arrays, as that is what the calculators' inner loops index.
+// The directory can be set with "-Dzima.cacheDir=...", or disabled by setting it to an empty string. Once it grows
+// past "-Dzima.cacheMaxSize=..." bytes (64 MiB by default), the least recently used tables are deleted.
+// Any I/O error just means the table is computed as if it was not cached; the first one is logged.
+public final class PrecalcCache {
+	private static final Path DIRECTORY = findDirectory();
+	private static final long MAX_SIZE = Long.getLong("zima.cacheMaxSize", 64L << 20);
+	private static final String EXTENSION = ".bin";
+	private static final int MAGIC = 0x5A505243; // "ZPRC"
+	private static final int HEADER_SIZE = 16;
+	private static final AtomicBoolean errorLogged = new AtomicBoolean();
+
+	private PrecalcCache() {
+
+	}
+
+	private static Path findDirectory() {
+		String property = System.getProperty("zima.cacheDir");
+		if (property != null) {
+			return property.isEmpty() ? null : Path.of(property);
+		}
+		String xdgCacheHome = System.getenv("XDG_CACHE_HOME");
+		if (xdgCacheHome != null && !xdgCacheHome.isEmpty()) {
+			return Path.of(xdgCacheHome, "zima");
+		}
+		return Path.of(System.getProperty("user.home"), ".cache", "zima");
+	}
+
+	public static int[] getInts(String name, int version, HashCode key, int length, Supplier<int[]> compute) {
+		Path file = getFile(name, version, key);
+		ByteBuffer buffer = read(file, length);
+		if (buffer != null) {
+			int[] data = new int[length];
+			buffer.asIntBuffer().get(data);
+			return data;
+		}
+
+		int[] data = compute.get();
+		if (file != null) {
+			ByteBuffer out = ByteBuffer.allocate(length * 4).order(ByteOrder.LITTLE_ENDIAN);
+			out.asIntBuffer().put(data, 0, length);
+			write(file, length, out);
+		}
+		return data;
+	}
+
+	public static float[] getFloats(String name, int version, HashCode key, int length, Supplier<float[]> compute) {
+		Path file = getFile(name, version, key);
+		ByteBuffer buffer = read(file, length);
+		if (buffer != null) {
+			float[] data = new float[length];
+			buffer.asFloatBuffer().get(data);
+			return data;
+		}
+
+		float[] data = compute.get();
+		if (file != null) {
+			ByteBuffer out = ByteBuffer.allocate(length * 4).order(ByteOrder.LITTLE_ENDIAN);
+			out.asFloatBuffer().put(data, 0, length);
+			write(file, length, out);
+		}
+		return data;
+	}
+
+	private static Path getFile(String name, int version, HashCode key) {
+		return DIRECTORY != null ? DIRECTORY.resolve(name + "-v" + version + "-" + key + EXTENSION) : null;
+	}
+
+	private static long checksum(byte[] data, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return crc.getValue();
+	}
+
+	private static long checksum(ByteBuffer data) {
+		CRC32 crc = new CRC32();
+		crc.update(data.duplicate());
+		return crc.getValue();
+	}
+
+	private static void logError(String action, Path file, IOException e) {
+		if (!errorLogged.getAndSet(true)) {
+			System.err.println("WARNING: Could not " + action + " precalculation cache file " + file + ", further errors will not be logged: " + e);
+		}
+	}
+
+	// returns the table's contents, or null if the file is missing or does not hold a valid table of this length
+	private static ByteBuffer read(Path file, int length) {
+		if (file == null) {
+			return null;
+		}
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() != HEADER_SIZE + length * 4L) {
+				delete(file);
+				return null;
+			}
+			// the mapping stays valid after the channel is closed
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			logError("read", file, e);
+			return null;
+		}
+
+		ByteBuffer contents = buffer.position(HEADER_SIZE).slice().order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != length || buffer.getLong(8) != checksum(contents)) {
+			// truncated or overwritten
+			delete(file);
+			return null;
+		}
+
+		try {
+			// for least recently used eviction
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// not worth logging
+		}
+		return contents;
+	}
+
+	private static void write(Path file, int length, ByteBuffer data) {
+		byte[] contents = data.array();
+		ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + contents.length).order(ByteOrder.LITTLE_ENDIAN);
+		out.putInt(MAGIC).putInt(length).putLong(checksum(contents, 0, contents.length)).put(contents);
+
+		Path tempFile = null;
+		try {
+			Files.createDirectories(file.getParent());
+			// write to a temporary file first, so that concurrent readers never see a partial table
+			tempFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			Files.write(tempFile, out.array());
+			try {
+				Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			tempFile = null;
+		} catch (IOException e) {
+			logError("write", file, e);
+		} finally {
+			if (tempFile != null) {
+				delete(tempFile);
+			}
+		}
+
+		evict(file.getParent());
+	}
+
+	private static void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			logError("delete", file, e);
+		}
+	}
+
+	@Data
+	private static class Entry {
+		private final Path file;
+		private final long size;
+		private final long lastUsed;
+	}
+
+	// deletes the least recently used tables until the directory fits in MAX_SIZE
+	private static void evict(Path directory) {
+		List<Entry> entries = new ArrayList<>();
+		long totalSize = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+			for (Path file : stream) {
+				BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				if (attributes.isRegularFile()) {
+					entries.add(new Entry(file, attributes.size(), attributes.lastModifiedTime().toMillis()));
+					totalSize += attributes.size();
+				}
+			}
+		} catch (IOException e) {
+			logError("list", directory, e);
+			return;
+		}
+
+		entries.sort(Comparator.comparingLong(Entry::getLastUsed));
+		for (int i = 0; i < entries.size() && totalSize > MAX_SIZE; i++) {
+			delete(entries.get(i).getFile());
+			totalSize -= entries.get(i).getSize();
+		}
+	}
+}
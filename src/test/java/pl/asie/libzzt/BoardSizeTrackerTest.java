@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.libzzt;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import pl.asie.zima.util.LengthMeasuringOutputStream;
+
+import java.io.IOException;
+import java.util.Random;
+
+public class BoardSizeTrackerTest {
+    private static int measure(Board board) throws IOException {
+        try (LengthMeasuringOutputStream stream = new LengthMeasuringOutputStream(); ZOutputStream zStream = new ZOutputStream(stream, board.getEngineDefinition())) {
+            board.writeZ(zStream);
+            return stream.getDataLength();
+        }
+    }
+
+    @Test
+    public void matchesSerializedSize() throws IOException {
+        EngineDefinition engine = EngineDefinition.zzt();
+        Element[] elements = {
+                engine.getElements().getEmpty(),
+                engine.getElements().byInternalName("SOLID"),
+                engine.getElements().byInternalName("NORMAL")
+        };
+        Random random = new Random(1234);
+        Board board = new Board(engine);
+        BoardSizeTracker tracker = new BoardSizeTracker(board);
+
+        for (int i = 0; i < 5000; i++) {
+            // small regions and few colors, so that long runs (including ones longer than 255) form and split
+            int x = 1 + random.nextInt(board.getWidth());
+            int y = 1 + random.nextInt(i < 2500 ? 3 : board.getHeight());
+            switch (random.nextInt(4)) {
+                case 0 -> tracker.setElement(x, y, elements[random.nextInt(elements.length)]);
+                case 1 -> tracker.setColor(x, y, random.nextInt(2));
+                case 2 -> tracker.setTile(x, y, elements[0], 0);
+                case 3 -> {
+                    if (random.nextInt(20) == 0) {
+                        Stat stat = new Stat();
+                        stat.setX(x);
+                        stat.setY(y);
+                        tracker.addStat(stat);
+                    }
+                }
+            }
+            if ((i % 50) == 0) {
+                Assertions.assertEquals(measure(board), tracker.getSize());
+            }
+        }
+        Assertions.assertEquals(measure(board), tracker.getSize());
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import pl.asie.libzzt.TextVisualData;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+
+public class ColorPairImageMseCalculatorTest {
+    private static final float EPSILON = 1.0e-4f;
+    private static final int TILES_WIDTH = 4;
+    private static final int TILES_HEIGHT = 2;
+
+    private static BufferedImage createNoise(TextVisualData visual) {
+        Random random = new Random(3);
+        BufferedImage image = new BufferedImage(TILES_WIDTH * visual.getCharWidth(), TILES_HEIGHT * visual.getCharHeight(), BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt() & 0xFFFFFF);
+            }
+        }
+        return image;
+    }
+
+    private static void assertMatchesScan(boolean blinkingDisabled) throws IOException {
+        TextVisualData visual = TestImages.createVisual();
+        LinearImage image = new LinearImage(createNoise(visual));
+        ColorPairImageMseCalculator calculator = new ColorPairImageMseCalculator(visual, blinkingDisabled, 0.0035f);
+        int[] colors = new int[256];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = i;
+        }
+        float[] bestMse = new float[1];
+
+        for (int ty = 0; ty < TILES_HEIGHT; ty++) {
+            for (int tx = 0; tx < TILES_WIDTH; tx++) {
+                ImageMseCalculator.Applier applier = calculator.applyMse(image, tx * visual.getCharWidth(), ty * visual.getCharHeight());
+                for (int chr = 0; chr < 256; chr++) {
+                    float scanMse = Float.MAX_VALUE;
+                    for (int color : colors) {
+                        scanMse = Math.min(scanMse, applier.apply(chr, color, Float.MAX_VALUE));
+                    }
+
+                    int bestIdx = applier.findBestColor(chr, colors, 0, colors.length, Float.MAX_VALUE, bestMse);
+                    Assertions.assertTrue(bestIdx >= 0, "no color found for character " + chr);
+                    float tolerance = Math.max(1.0f, scanMse) * EPSILON;
+                    // colors solving to the same error may be picked in any order, so only their errors are compared
+                    Assertions.assertEquals(scanMse, applier.apply(chr, colors[bestIdx], Float.MAX_VALUE), tolerance, "character " + chr);
+                    Assertions.assertEquals(scanMse, bestMse[0], tolerance, "character " + chr);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findBestColorMatchesScanTest() throws IOException {
+        assertMatchesScan(true);
+    }
+
+    @Test
+    public void findBestColorMatchesScanWithBlinkingTest() throws IOException {
+        assertMatchesScan(false);
+    }
+}
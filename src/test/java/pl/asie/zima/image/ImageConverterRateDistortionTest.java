@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import pl.asie.libzzt.BoardSizeTracker;
+import pl.asie.libzzt.TextVisualData;
+import pl.asie.zima.util.ZimaPlatform;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+public class ImageConverterRateDistortionTest {
+    private static final int WIDTH = 60;
+    private static final int HEIGHT = 25;
+    private static final float LAMBDA = 0.1f;
+
+    private static ImageConverter.Result convert(TextVisualData visual, BufferedImage image, ImageMseCalculator mseCalculator, float lambda) {
+        ImageConverter converter = new ImageConverter(visual, ZimaPlatform.ZZT, mseCalculator, 0, StatAllocationMode.GREEDY, lambda);
+        ImageConverterRuleset ruleset = new ImageConverterRules(ZimaPlatform.ZZT, false).getRuleset("Blocks");
+        return converter.convert(image, ruleset, 1, 1, WIDTH, HEIGHT, WIDTH, HEIGHT, 0, true, 20002,
+                0.0f, null, null, null, 0, null, new ConversionProgress(), false).getFirst();
+    }
+
+    @Test
+    public void lambdaTradesErrorForSize() throws IOException {
+        TextVisualData visual = TestImages.createVisual();
+        BufferedImage image = TestImages.createGradient(WIDTH * visual.getCharWidth(), HEIGHT * visual.getCharHeight());
+        ImageMseCalculator mseCalculator = new TrixImageMseCalculator(visual, true, 0.0035f, 0.45f);
+
+        ImageConverter.Result plain = convert(visual, image, mseCalculator, 0.0f);
+        ImageConverter.Result rateDistortion = convert(visual, image, mseCalculator, LAMBDA);
+
+        int plainSize = new BoardSizeTracker(plain.getBoard()).getSize();
+        int rateDistortionSize = new BoardSizeTracker(rateDistortion.getBoard()).getSize();
+        Assertions.assertTrue(rateDistortionSize <= plainSize, rateDistortionSize + " > " + plainSize + " bytes");
+
+        // each tile gives up less than lambda * the 3 bytes of the run it no longer starts
+        LinearImage linearImage = new LinearImage(image);
+        int changedTiles = 0;
+        double mseRise = 0.0;
+        for (int iy = 0; iy < HEIGHT; iy++) {
+            for (int ix = 0; ix < WIDTH; ix++) {
+                ImageMseCalculator.Applier applier = mseCalculator.applyMse(linearImage, ix * visual.getCharWidth(), iy * visual.getCharHeight());
+                float plainMse = applier.apply(plain.getCharacter(ix, iy), plain.getColor(ix, iy), Float.MAX_VALUE);
+                float rateDistortionMse = applier.apply(rateDistortion.getCharacter(ix, iy), rateDistortion.getColor(ix, iy), Float.MAX_VALUE);
+                Assertions.assertTrue(rateDistortionMse - plainMse <= LAMBDA * 3 + 1e-4f, "MSE rise at " + ix + ", " + iy);
+                if (plain.getCharacter(ix, iy) != rateDistortion.getCharacter(ix, iy) || plain.getColor(ix, iy) != rateDistortion.getColor(ix, iy)) {
+                    changedTiles++;
+                }
+                mseRise += rateDistortionMse - plainMse;
+            }
+        }
+        Assertions.assertTrue(changedTiles > 0, "no tiles changed");
+        Assertions.assertTrue(mseRise <= LAMBDA * 3 * changedTiles + 1e-3, "total MSE rise " + mseRise);
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import pl.asie.libzzt.TextVisualData;
+import pl.asie.zima.util.DitherMatrix;
+import pl.asie.zima.util.ImageUtils;
+import pl.asie.zima.util.ZimaPlatform;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.BitSet;
+
+public class ImageConverterReuseTest {
+    private static final int WIDTH = 20;
+    private static final int HEIGHT = 10;
+
+    private static BufferedImage createImage(TextVisualData visual) {
+        return TestImages.createGradient(WIDTH * visual.getCharWidth(), HEIGHT * visual.getCharHeight());
+    }
+
+    private static ImageConverter.Result convert(ImageConverter converter, BufferedImage image, float ditherStrength,
+                                                 ImageConverter.Result previousResult, BitSet dirtyTiles) {
+        return converter.convert(image, null, 1, 1, WIDTH, HEIGHT, 0, 0, 0, true, 0,
+                ditherStrength, DitherMatrix.FLOYD_STEINBERG, null, null, 0, null,
+                new ConversionProgress(), false, previousResult, dirtyTiles).getFirst();
+    }
+
+    private static void assertSameTiles(ImageConverter.Result expected, ImageConverter.Result actual) {
+        for (int iy = 0; iy < HEIGHT; iy++) {
+            for (int ix = 0; ix < WIDTH; ix++) {
+                Assertions.assertEquals(expected.getCharacter(ix, iy), actual.getCharacter(ix, iy), "character at " + ix + ", " + iy);
+                Assertions.assertEquals(expected.getColor(ix, iy), actual.getColor(ix, iy), "color at " + ix + ", " + iy);
+            }
+        }
+    }
+
+    @Test
+    public void unditheredReusesUndithered() throws IOException {
+        TextVisualData visual = TestImages.createVisual();
+        BufferedImage image = createImage(visual);
+        ImageConverter converter = new ImageConverter(visual, ZimaPlatform.MEGAZEUX, new TrixImageMseCalculator(visual, true, 0.0035f, 0.45f));
+        BitSet dirtyTiles = ImageUtils.findChangedTiles(image, image, visual.getCharWidth(), visual.getCharHeight());
+
+        ImageConverter.Result first = convert(converter, image, 0.0f, null, null);
+        ImageConverter.Result second = convert(converter, image, 0.0f, first, dirtyTiles);
+        Assertions.assertEquals(WIDTH * HEIGHT, second.getReusedTiles());
+        assertSameTiles(first, second);
+    }
+
+    @Test
+    public void unditheredDoesNotReuseDithered() throws IOException {
+        TextVisualData visual = TestImages.createVisual();
+        BufferedImage image = createImage(visual);
+        ImageConverter converter = new ImageConverter(visual, ZimaPlatform.MEGAZEUX, new TrixImageMseCalculator(visual, true, 0.0035f, 0.45f));
+        BitSet dirtyTiles = ImageUtils.findChangedTiles(image, image, visual.getCharWidth(), visual.getCharHeight());
+
+        ImageConverter.Result dithered = convert(converter, image, 1.0f, null, null);
+        Assertions.assertTrue(dithered.isDithered());
+        ImageConverter.Result undithered = convert(converter, image, 0.0f, dithered, dirtyTiles);
+        Assertions.assertFalse(undithered.isDithered());
+        Assertions.assertEquals(0, undithered.getReusedTiles());
+
+        ImageConverter fresh = new ImageConverter(visual, ZimaPlatform.MEGAZEUX, new TrixImageMseCalculator(visual, true, 0.0035f, 0.45f));
+        assertSameTiles(convert(fresh, image, 0.0f, null, null), undithered);
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+public class MseKernelsTest {
+    private static final float EPSILON = 1.0e-4f;
+
+    private static int[] randomColors(Random random, int length) {
+        int[] colors = new int[length];
+        for (int i = 0; i < length; i++) {
+            colors[i] = random.nextInt() | 0xFF000000;
+        }
+        return colors;
+    }
+
+    private static void assertClose(float expected, float actual) {
+        Assertions.assertEquals(expected, actual, Math.max(1.0f, Math.abs(expected)) * EPSILON);
+    }
+
+    @Test
+    public void selectRowSumMatchesScalarTest() {
+        Random random = new Random(1);
+        float[] off = new float[8 * 14];
+        float[] on = new float[8 * 14];
+        for (int i = 0; i < off.length; i++) {
+            off[i] = random.nextFloat();
+            on[i] = random.nextFloat();
+        }
+
+        for (int width : new int[] { 4, 8 }) {
+            for (int bits = 0; bits < (1 << width); bits++) {
+                int offset = random.nextInt(13) * width;
+                assertClose(MseKernels.scalar().selectRowSum(off, on, offset, width, bits),
+                        MseKernels.get().selectRowSum(off, on, offset, width, bits));
+            }
+        }
+    }
+
+    @Test
+    public void distanceRowSumMatchesScalarTest() {
+        Random random = new Random(2);
+        int[] a = randomColors(random, 64);
+        int[] b = randomColors(random, 64);
+
+        for (int width : new int[] { 3, 4, 8 }) {
+            for (int i = 0; i < 64; i++) {
+                int aOffset = random.nextInt(64 - width);
+                int bOffset = random.nextInt(64 - width);
+                assertClose(MseKernels.scalar().distanceRowSum(a, aOffset, b, bOffset, width),
+                        MseKernels.get().distanceRowSum(a, aOffset, b, bOffset, width));
+                assertClose(MseKernels.scalar().distanceRowSum(a, aOffset, b[i], width),
+                        MseKernels.get().distanceRowSum(a, aOffset, b[i], width));
+            }
+        }
+    }
+}
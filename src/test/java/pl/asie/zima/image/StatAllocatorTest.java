@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+public class StatAllocatorTest {
+    private static final double EPSILON = 1.0e-4;
+
+    // highest total gain of any subset within both budgets
+    private static double exhaustiveGain(float[] gains, int[] costs, int maxCount, int maxBytes) {
+        double best = 0.0;
+        for (int mask = 0; mask < (1 << gains.length); mask++) {
+            if (Integer.bitCount(mask) > maxCount) {
+                continue;
+            }
+            long bytes = 0;
+            double gain = 0.0;
+            for (int i = 0; i < gains.length; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    bytes += costs[i];
+                    gain += gains[i];
+                }
+            }
+            if (bytes <= maxBytes) {
+                best = Math.max(best, gain);
+            }
+        }
+        return best;
+    }
+
+    // checks the selection against both budgets, returning its total gain
+    private static double checkSelection(int[] selected, float[] gains, int[] costs, int maxCount, int maxBytes) {
+        Assertions.assertTrue(selected.length <= maxCount, "selected " + selected.length + " > " + maxCount);
+        boolean[] seen = new boolean[gains.length];
+        long bytes = 0;
+        double gain = 0.0;
+        for (int i : selected) {
+            Assertions.assertFalse(seen[i], "selected " + i + " twice");
+            seen[i] = true;
+            bytes += costs[i];
+            gain += gains[i];
+        }
+        Assertions.assertTrue(bytes <= maxBytes, bytes + " > " + maxBytes + " bytes");
+        return gain;
+    }
+
+    @Test
+    public void staysWithinBudgetTest() {
+        Random random = new Random(1);
+        for (int run = 0; run < 500; run++) {
+            int n = 1 + random.nextInt(10);
+            float[] gains = new float[n];
+            int[] costs = new int[n];
+            for (int i = 0; i < n; i++) {
+                gains[i] = random.nextFloat() * 2.0f - 0.5f;
+                costs[i] = 1 + random.nextInt(40);
+            }
+            int maxCount = random.nextInt(n + 1);
+            int maxBytes = random.nextInt(200);
+
+            int[] selected = StatAllocator.select(ConversionExecutor.common(), gains, costs, maxCount, maxBytes);
+            double gain = checkSelection(selected, gains, costs, maxCount, maxBytes);
+            Assertions.assertTrue(gain <= exhaustiveGain(gains, costs, maxCount, maxBytes) + EPSILON);
+        }
+    }
+
+    @Test
+    public void matchesExhaustiveSearchUnderCountBudgetTest() {
+        Random random = new Random(2);
+        for (int run = 0; run < 200; run++) {
+            int n = 1 + random.nextInt(10);
+            float[] gains = new float[n];
+            int[] costs = new int[n];
+            int totalBytes = 0;
+            for (int i = 0; i < n; i++) {
+                gains[i] = random.nextFloat() * 2.0f - 0.5f;
+                costs[i] = 1 + random.nextInt(40);
+                totalBytes += costs[i];
+            }
+            int maxCount = random.nextInt(n + 1);
+
+            int[] selected = StatAllocator.select(ConversionExecutor.common(), gains, costs, maxCount, totalBytes);
+            Assertions.assertEquals(exhaustiveGain(gains, costs, maxCount, totalBytes),
+                    checkSelection(selected, gains, costs, maxCount, totalBytes), EPSILON);
+        }
+    }
+
+    @Test
+    public void matchesExhaustiveSearchUnderByteBudgetTest() {
+        // with equal costs, the best choice is the highest gains that fit; the gains are far enough apart for the
+        // allocator's price steps to separate each of them
+        Random random = new Random(3);
+        for (int run = 0; run < 200; run++) {
+            int n = 1 + random.nextInt(8);
+            float[] gains = new float[n];
+            int[] costs = new int[n];
+            int cost = 1 + random.nextInt(40);
+            for (int i = 0; i < n; i++) {
+                gains[i] = 100.0f / (float) Math.pow(1.5, i);
+                costs[i] = cost;
+            }
+            for (int i = n - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                float swap = gains[i];
+                gains[i] = gains[j];
+                gains[j] = swap;
+            }
+            int maxCount = random.nextInt(n + 1);
+            int maxBytes = random.nextInt(cost * n + 1);
+
+            int[] selected = StatAllocator.select(ConversionExecutor.common(), gains, costs, maxCount, maxBytes);
+            Assertions.assertEquals(exhaustiveGain(gains, costs, maxCount, maxBytes),
+                    checkSelection(selected, gains, costs, maxCount, maxBytes), EPSILON);
+        }
+    }
+}
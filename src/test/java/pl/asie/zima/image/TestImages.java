@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import pl.asie.libzzt.TextVisualData;
+import pl.asie.zima.Constants;
+import pl.asie.zima.util.FileUtils;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Random;
+
+// Fixtures shared by the converter tests.
+public final class TestImages {
+    private TestImages() {
+
+    }
+
+    // the 8x14 charset with the EGA palette
+    public static TextVisualData createVisual() throws IOException {
+        byte[] charset = FileUtils.readAll(Objects.requireNonNull(TestImages.class.getClassLoader().getResourceAsStream("8x14.bin")));
+        return new TextVisualData(8, charset.length >> 8, charset, Constants.EGA_PALETTE);
+    }
+
+    // a red/green gradient with noise on top, the same for every call with the same size
+    public static BufferedImage createGradient(int width, int height) {
+        Random random = new Random(1);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = Math.min(255, x * 255 / width + random.nextInt(32));
+                int g = Math.min(255, y * 255 / height + random.nextInt(32));
+                int b = random.nextInt(256);
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image.gui;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import pl.asie.zima.image.ConversionProgress;
+import pl.asie.zima.image.ImageConverterRules;
+import pl.asie.zima.image.ImageConverterType;
+import pl.asie.zima.image.TestImages;
+import pl.asie.zima.util.PropertyHolder;
+import pl.asie.zima.util.ZimaPlatform;
+
+import java.io.IOException;
+import java.util.List;
+
+public class ZimaProfileTunerTest {
+    @Test
+    public void tunesBoardSmallerThanPlatformBoard() throws IOException {
+        ZimaConversionProfile profile = new ZimaConversionProfile();
+        PropertyHolder properties = profile.getProperties();
+        properties.set(ZimaConversionProfile.VISUAL_DATA, TestImages.createVisual());
+        properties.set(ZimaConversionProfile.PLATFORM, ZimaPlatform.ZZT);
+        properties.set(ZimaConversionProfile.RULESET, new ImageConverterRules(ZimaPlatform.ZZT, false).getRuleset("Blocks"));
+        properties.set(ZimaConversionProfile.CHARS_WIDTH, 20);
+        properties.set(ZimaConversionProfile.CHARS_HEIGHT, 10);
+        properties.set(ZimaConversionProfile.BOARD_X, 5);
+        properties.set(ZimaConversionProfile.BOARD_Y, 3);
+
+        List<ZimaProfileTuner.Trial> trials = ZimaProfileTuner.createGrid(List.of(ImageConverterType.TRIX, ImageConverterType.COLOR_PAIR),
+                new float[] { 0.0035f }, new float[] { 0.45f }, new float[] { 0.0f, 0.5f });
+        List<ZimaProfileTuner.TrialResult> results = new ZimaProfileTuner(profile).run(TestImages.createGradient(320, 240), trials, 2, new ConversionProgress());
+
+        Assertions.assertEquals(trials.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            double ssim = results.get(i).getSsim();
+            Assertions.assertTrue(ssim > 0.0 && ssim <= 1.0, "SSIM " + ssim);
+            if (i > 0) {
+                Assertions.assertTrue(results.get(i - 1).getSsim() >= ssim);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+
+public class ImageMetricsTest {
+    private BufferedImage pattern(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, ((x * 7) & 0xFF) << 16 | ((y * 5) & 0xFF) << 8 | ((x ^ y) & 0xFF));
+            }
+        }
+        return image;
+    }
+
+    @Test
+    public void identicalImagesTest() {
+        BufferedImage image = pattern(40, 28);
+        ImageMetrics.Report report = ImageMetrics.compare(image, pattern(40, 28), 8, 14);
+        Assertions.assertEquals(Double.POSITIVE_INFINITY, report.getPsnr());
+        Assertions.assertEquals(1.0, report.getSsim(), 1e-9);
+        Assertions.assertEquals(0.0f, report.getMaxTileError());
+    }
+
+    @Test
+    public void uniformErrorTest() {
+        // every channel off by 16: MSE 256
+        BufferedImage reference = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 16; x++) {
+                reference.setRGB(x, y, 0x404040);
+                image.setRGB(x, y, 0x505050);
+            }
+        }
+        Assertions.assertEquals(10.0 * Math.log10(255.0 * 255.0 / 256.0), ImageMetrics.psnr(reference, image), 1e-9);
+    }
+
+    @Test
+    public void tileErrorsTest() {
+        // 37x28 in 8x14 tiles, the last column of tiles cut short; only tile (2, 1) differs
+        BufferedImage reference = pattern(37, 28);
+        BufferedImage image = pattern(37, 28);
+        image.setRGB(20, 20, image.getRGB(20, 20) ^ 0xFFFFFF);
+        ImageMetrics.Report report = ImageMetrics.compare(reference, image, 8, 14);
+
+        Assertions.assertEquals(5, report.getTilesWidth());
+        Assertions.assertEquals(2, report.getTilesHeight());
+        for (int i = 0; i < report.getTileErrors().length; i++) {
+            if (i == 1 * 5 + 2) {
+                Assertions.assertTrue(report.getTileErrors()[i] > 0.0f);
+            } else {
+                Assertions.assertEquals(0.0f, report.getTileErrors()[i], "tile " + i);
+            }
+        }
+        Assertions.assertTrue(report.getSsim() < 1.0);
+    }
+}
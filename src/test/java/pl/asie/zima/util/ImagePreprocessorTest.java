@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+
+public class ImagePreprocessorTest {
+    private static final ImagePreprocessor.Filter NO_FILTER = new ImagePreprocessor.Filter(0.0f, 0.0f, 0.0f);
+
+    private BufferedImage image(int width, int height, int color) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, color);
+            }
+        }
+        return image;
+    }
+
+    // RtosR() truncates, so channels may come out one lower
+    private void assertColor(int expected, int actual, String message) {
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int e = (expected >> shift) & 0xFF;
+            int a = (actual >> shift) & 0xFF;
+            Assertions.assertTrue(Math.abs(e - a) <= 1, message + ": " + Integer.toHexString(actual & 0xFFFFFF));
+        }
+    }
+
+    @Test
+    public void uniformColorTest() {
+        BufferedImage input = image(97, 61, 0x4080C0);
+        // shrinking, enlarging and unscaled
+        for (int[] size : new int[][] { { 16, 14 }, { 200, 140 }, { 97, 61 } }) {
+            BufferedImage output = new ImagePreprocessor(input, 0, 0, 97, 61, size[0], size[1], 0, 0, size[0], size[1]).process(NO_FILTER);
+            for (int y = 0; y < size[1]; y++) {
+                for (int x = 0; x < size[0]; x++) {
+                    assertColor(0x4080C0, output.getRGB(x, y), "pixel " + x + ", " + y);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void cropAndBorderTest() {
+        // white right half; cropping to it, drawn into the middle of a black frame
+        BufferedImage input = image(40, 20, 0x000000);
+        for (int y = 0; y < 20; y++) {
+            for (int x = 20; x < 40; x++) {
+                input.setRGB(x, y, 0xFFFFFF);
+            }
+        }
+
+        BufferedImage output = new ImagePreprocessor(input, 20, 0, 20, 20, 30, 10, 10, 0, 10, 10).process(NO_FILTER);
+        for (int x = 0; x < 30; x++) {
+            int expected = (x >= 10 && x < 20) ? 0xFFFFFF : 0x000000;
+            assertColor(expected, output.getRGB(x, 5), "pixel " + x);
+        }
+    }
+
+    @Test
+    public void scaleThenFilterMatchesProcessTest() {
+        BufferedImage input = image(50, 50, 0x123456);
+        input.setRGB(10, 10, 0xFFFFFF);
+        ImagePreprocessor preprocessor = new ImagePreprocessor(input, 3, 2, 40, 45, 24, 28, 2, 1, 20, 26);
+        ImagePreprocessor.Filter filter = new ImagePreprocessor.Filter(0.05f, 0.2f, -0.3f);
+
+        BufferedImage fused = preprocessor.process(filter);
+        BufferedImage split = ImagePreprocessor.filter(preprocessor.scale(), filter);
+        for (int y = 0; y < 28; y++) {
+            for (int x = 0; x < 24; x++) {
+                Assertions.assertEquals(fused.getRGB(x, y), split.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void stripsMatchProcessTest() {
+        BufferedImage input = image(60, 90, 0x123456);
+        for (int y = 0; y < 90; y++) {
+            input.setRGB(y % 60, y, 0xFFFFFF);
+        }
+        ImagePreprocessor.Filter filter = new ImagePreprocessor.Filter(0.05f, 0.2f, -0.3f);
+        // shrinking and enlarging, with a border above and below
+        for (int[] size : new int[][] { { 20, 40, 5, 30 }, { 90, 160, 10, 140 } }) {
+            BufferedImage whole = new ImagePreprocessor(input, 4, 3, 50, 80, size[0], size[1], 0, size[2], size[0], size[3]).process(filter);
+            ImagePreprocessor strips = new ImagePreprocessor(60, 90, null, 4, 3, 50, 80, size[0], size[1], 0, size[2], size[0], size[3]);
+            for (int fromY = 0; fromY < size[1]; fromY += 7) {
+                int toY = Math.min(size[1], fromY + 7);
+                int[] rows = strips.getSourceRows(fromY, toY);
+                int[] columns = strips.getSourceColumns();
+                BufferedImage source = rows[0] < rows[1] ? input.getSubimage(columns[0], rows[0], columns[1] - columns[0], rows[1] - rows[0]) : null;
+                BufferedImage strip = strips.processRows(source, columns[0], rows[0], fromY, toY, filter);
+                for (int y = fromY; y < toY; y++) {
+                    for (int x = 0; x < size[0]; x++) {
+                        Assertions.assertEquals(whole.getRGB(x, y), strip.getRGB(x, y - fromY), "pixel " + x + ", " + y);
+                    }
+                }
+            }
+        }
+    }
+}
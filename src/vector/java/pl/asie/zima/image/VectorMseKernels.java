@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2020, 2021, 2022 Adrian Siekierka
+ *
+ * This file is part of zima.
+ *
+ * zima is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * zima is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with zima.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.zima.image;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Only ever loaded via MseKernelsHolder, and only if jdk.incubator.vector is present. Rows are walked in vectors of
+// the platform's preferred size, masking off the tail, so that rows wider or narrower than a vector stay native.
+final class VectorMseKernels implements MseKernels {
+	private static final VectorSpecies<Float> FLOAT = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Integer> INT = IntVector.SPECIES_PREFERRED;
+	private static final float DISTANCE_DIV = 768.0f * 768.0f;
+
+	public VectorMseKernels() {
+
+	}
+
+	@Override
+	public float selectRowSum(float[] off, float[] on, int offset, int length, int bits) {
+		float sum = 0.0f;
+		for (int i = 0; i < length; i += FLOAT.length()) {
+			VectorMask<Float> range = FLOAT.indexInRange(i, length);
+			FloatVector offV = FloatVector.fromArray(FLOAT, off, offset + i, range);
+			FloatVector onV = FloatVector.fromArray(FLOAT, on, offset + i, range);
+			sum += offV.blend(onV, VectorMask.fromLong(FLOAT, bits >>> i)).reduceLanes(VectorOperators.ADD);
+		}
+		return sum;
+	}
+
+	// Mirrors ColorUtils.distance(), lane-wise; the integer terms are summed before the final division. Lanes past the
+	// end of the row load as zero on both sides, and so add nothing.
+	@Override
+	public float distanceRowSum(int[] a, int aOffset, int[] b, int bOffset, int length) {
+		int sum = 0;
+		for (int i = 0; i < length; i += INT.length()) {
+			VectorMask<Integer> range = INT.indexInRange(i, length);
+			IntVector av = IntVector.fromArray(INT, a, aOffset + i, range);
+			IntVector bv = IntVector.fromArray(INT, b, bOffset + i, range);
+			IntVector ar = av.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+			IntVector ag = av.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+			IntVector ab = av.and(0xFF);
+			IntVector br = bv.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+			IntVector bg = bv.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+			IntVector bb = bv.and(0xFF);
+
+			IntVector rmean = ar.add(br).lanewise(VectorOperators.ASHR, 1);
+			IntVector rdiff = ar.sub(br);
+			IntVector gdiff = ag.sub(bg);
+			IntVector bdiff = ab.sub(bb);
+
+			sum += rmean.add(512).mul(rdiff).mul(rdiff).lanewise(VectorOperators.ASHR, 8)
+					.add(gdiff.mul(gdiff).mul(4))
+					.add(rmean.neg().add(767).mul(bdiff).mul(bdiff).lanewise(VectorOperators.ASHR, 8))
+					.reduceLanes(VectorOperators.ADD);
+		}
+		return sum / DISTANCE_DIV;
+	}
+
+	// Only used for the few blended (shaded block) characters.
+	@Override
+	public float distanceRowSum(int[] a, int aOffset, int b, int length) {
+		return ScalarMseKernels.INSTANCE.distanceRowSum(a, aOffset, b, length);
+	}
+}